@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import socialnetwork.jmh.Workload;
+
+
+public class SocialNetworkWorkload implements Workload {
+
+	/*
+	 * The benchmarks' view of a SocialNetwork, see Workload.
+	 *
+	 * The network is a SocialGraphGenerator power-law network of the given average degree, with a
+	 * few pending requests and blocks, written straight into the DAO, as joining and befriending
+	 * millions of members one operation at a time would take longer than the benchmarks. The seed is
+	 * fixed, so every trial of the same size starts from the same network. File stores are
+	 * checkpointed once filled, so they are read the way they are after a restart.
+	 *
+	 * The operations run for up to SESSIONS members picked at random, whose sessions are opened
+	 * here and stay open for the trial: an operation times what the member does, not logging in and
+	 * out around it. Sessions are thread-safe, so threads share them.
+	 */
+
+	private static final int CACHED_ACCOUNTS = 100000;
+	private static final int SESSIONS = 1 << 16;
+
+	private final IAccountDAO accountDAO;
+	// the file store under the DAO, and its directory; null for the fake
+	private final AccountDAO store;
+	private final File dataBase;
+	private final SocialNetwork network;
+	// the same network, with parallel scans
+	private final SocialNetwork parallelNetwork;
+	// the members the operations run for, with their sessions on each network
+	private final String[] userNames;
+	private final Session[] sessions;
+	private final Session[] parallelSessions;
+	// members joined to leave, with their sessions
+	private final Map<String, Session> joined = new ConcurrentHashMap<String, Session>();
+
+	public SocialNetworkWorkload(String dao, int members, int degree) throws IOException, UserNotFoundException {
+		switch (dao) {
+		case "fake":
+			dataBase = null;
+			store = null;
+			accountDAO = new AccountDAOFake();
+			break;
+		case "file":
+		case "cached-file":
+			dataBase = Files.createTempDirectory("benchmark-accounts").toFile();
+			store = new AccountDAO(dataBase.getPath());
+			accountDAO = dao.equals("file") ? store : new CachingAccountDAO(store, CACHED_ACCOUNTS);
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown DAO: " + dao);
+		}
+		SocialGraphGenerator generator = new SocialGraphGenerator(members, Math.max(1, degree / 2), 42)
+				.setRequestsPerMember(1).setBlocksPerMember(0.1);
+		generator.populate(accountDAO);
+		String[] all = generator.userNames().toArray(new String[members]);
+		if (store != null) store.checkpoint();
+		network = new SocialNetwork(accountDAO);
+		parallelNetwork = new SocialNetwork(accountDAO);
+		parallelNetwork.setParallelScans(true);
+		int[] picked = new Random(42).ints(0, members).distinct().limit(Math.min(members, SESSIONS)).toArray();
+		userNames = new String[picked.length];
+		sessions = new Session[picked.length];
+		parallelSessions = new Session[picked.length];
+		for (int each = 0; each < picked.length; each++) {
+			userNames[each] = all[picked[each]];
+			sessions[each] = network.openSession(handle(userNames[each]));
+			parallelSessions[each] = parallelNetwork.openSession(handle(userNames[each]));
+		}
+	}
+
+	private static Account handle(String userName) {
+		Account member = new Account();
+		member.setUserName(userName);
+		return member;
+	}
+
+	// another member than the given one, at random
+	private int other(int member) {
+		int other = ThreadLocalRandom.current().nextInt(userNames.length - 1);
+		return other < member ? other : other + 1;
+	}
+
+	// the members with a session
+	public int memberCount() {
+		return userNames.length;
+	}
+
+	public Object join(String userName) throws Exception {
+		return network.join(userName);
+	}
+
+	public Object login(int member) throws Exception {
+		return network.login(handle(userNames[member]));
+	}
+
+	public Object listMembers(int member) throws Exception {
+		return sessions[member].listMembers();
+	}
+
+	public Object listMembersInParallel(int member) throws Exception {
+		return parallelSessions[member].listMembers();
+	}
+
+	public Object sendFriendshipTo(int member, int other) throws Exception {
+		if (other == member) other = other(member);
+		request(sessions[member], userNames[other]);
+		return sessions[member];
+	}
+
+	// a request to a member that blocks the sender fails, as it would for a member
+	private static void request(Session session, String userName) throws NoUserLoggedInException {
+		try {
+			session.sendFriendshipTo(userName);
+		} catch (UserNotFoundException e) {
+			// blocked
+		}
+	}
+
+	public Object acceptAllFriendships(int member) throws Exception {
+		sessions[member].acceptAllFriendships();
+		return sessions[member];
+	}
+
+	// drops the member's cached recommendations first, so every call computes them: with the few
+	// members benchmarked, the cache would otherwise serve nearly all of them
+	public Object recommendFriends(int member) throws Exception {
+		network.recommendationCache().invalidate(userNames[member]);
+		return sessions[member].recommendFriends();
+	}
+
+	public Object leave(String userName) throws Exception {
+		Session session = joined.remove(userName);
+		session.leave();
+		return session;
+	}
+
+	public void requestFriendships(int member, int requests) throws Exception {
+		for (int i = 0; i < requests; i++) {
+			request(sessions[other(member)], userNames[member]);
+		}
+	}
+
+	public void joinWithRequests(String userName, int requests) throws Exception {
+		network.join(userName);
+		Session session = network.openSession(handle(userName));
+		for (int i = 0; i < requests; i++) {
+			request(session, userNames[ThreadLocalRandom.current().nextInt(userNames.length)]);
+		}
+		joined.put(userName, session);
+	}
+
+	public void close() {
+		if (store == null) return;
+		store.close();
+		for (File each : dataBase.listFiles()) {
+			each.delete();
+		}
+		dataBase.delete();
+	}
+
+}
@@ -0,0 +1,147 @@
+package socialnetwork.jmh;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+
+@State(Scope.Benchmark)
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SocialNetworkBenchmark {
+
+	/*
+	 * Times the ISocialNetwork operations on generated networks of 1e3 to 1e7 members, for each DAO.
+	 *
+	 * Every operation runs for a member picked at random, in a session of that member opened before
+	 * the trial, so only login() times a login and none times a logout's flush. recommendFriends
+	 * computes the recommendations on every call rather than timing the cache. Operations that need
+	 * something to act on get it from a per-invocation setup, which JMH doesn't time:
+	 * acceptAllFriendships first gets friendship requests, leave first gets a new member to leave.
+	 * main() adds the GC profiler, for the allocation rate per operation; the larger networks need
+	 * a large heap, passed with -jvmArgsAppend.
+	 */
+
+	@Param({ "1000", "10000", "100000", "1000000", "10000000" })
+	public int members;
+
+	@Param({ "10", "50" })
+	public int degree;
+
+	@Param({ "fake", "file", "cached-file" })
+	public String dao;
+
+	Workload network;
+
+	// names of the members the benchmarks join, unique across threads and iterations
+	private static final AtomicLong joined = new AtomicLong();
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		network = Workload.create(dao, members, degree);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		network.close();
+	}
+
+	static String newMember() {
+		return "Joined" + joined.incrementAndGet();
+	}
+
+	@State(Scope.Thread)
+	public static class PendingRequests {
+		int member;
+
+		@Setup(Level.Invocation)
+		public void setUp(SocialNetworkBenchmark benchmark) throws Exception {
+			member = benchmark.network.randomMember();
+			benchmark.network.requestFriendships(member, 4);
+		}
+	}
+
+	@State(Scope.Thread)
+	public static class Leaver {
+		String userName;
+
+		@Setup(Level.Invocation)
+		public void setUp(SocialNetworkBenchmark benchmark) throws Exception {
+			userName = newMember();
+			benchmark.network.joinWithRequests(userName, Math.max(1, benchmark.degree / 2));
+		}
+	}
+
+	@Benchmark
+	public Object join() throws Exception {
+		return network.join(newMember());
+	}
+
+	@Benchmark
+	public Object login() throws Exception {
+		return network.login(network.randomMember());
+	}
+
+	@Benchmark
+	public Object listMembers() throws Exception {
+		return network.listMembers(network.randomMember());
+	}
+
+	// compare with listMembers, and across -t or the processors given to the fork, for how the scan scales
+	@Benchmark
+	public Object listMembersInParallel() throws Exception {
+		return network.listMembersInParallel(network.randomMember());
+	}
+
+	@Benchmark
+	public Object sendFriendshipTo() throws Exception {
+		return network.sendFriendshipTo(network.randomMember(), network.randomMember());
+	}
+
+	@Benchmark
+	public Object acceptAllFriendships(PendingRequests requests) throws Exception {
+		return network.acceptAllFriendships(requests.member);
+	}
+
+	@Benchmark
+	public Object recommendFriends() throws Exception {
+		return network.recommendFriends(network.randomMember());
+	}
+
+	@Benchmark
+	public Object leave(Leaver leaver) throws Exception {
+		return network.leave(leaver.userName);
+	}
+
+	// runs the benchmarks selected by the usual JMH options, with the GC profiler
+	public static void main(String[] args) throws Exception {
+		CommandLineOptions options = new CommandLineOptions(args);
+		if (options.shouldHelp() || options.shouldList() || options.shouldListProfilers()
+				|| options.shouldListResultFormats() || options.shouldListWithParams()) {
+			org.openjdk.jmh.Main.main(args);
+			return;
+		}
+		new Runner(new OptionsBuilder().parent(options).addProfiler(GCProfiler.class).build()).run();
+	}
+
+}
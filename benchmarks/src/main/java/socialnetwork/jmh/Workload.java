@@ -0,0 +1,63 @@
+package socialnetwork.jmh;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+
+public interface Workload extends AutoCloseable {
+
+	/*
+	 * A generated social network, and the operations the benchmarks time on it.
+	 *
+	 * The social network lives in the default package, which JMH benchmarks can't be in and named
+	 * packages can't import, so SocialNetworkWorkload, in the default package, implements this
+	 * interface for them and is created by name. Members are addressed by index; each operation runs
+	 * in a session of its member, opened when the workload was created, as a logged-in client's
+	 * would, and returns something for a Blackhole.
+	 */
+
+	// a network of the given number of members whose friendships average the given degree, stored
+	// in the named DAO: fake, file or cached-file
+	static Workload create(String dao, int members, int degree) {
+		try {
+			return (Workload) Class.forName("SocialNetworkWorkload")
+					.getConstructor(String.class, int.class, int.class)
+					.newInstance(dao, members, degree);
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Cannot create the " + dao + " workload", e);
+		}
+	}
+
+	// the members the operations can run for
+	int memberCount();
+
+	default int randomMember() {
+		return ThreadLocalRandom.current().nextInt(memberCount());
+	}
+
+	Object join(String userName) throws Exception;
+
+	Object login(int member) throws Exception;
+
+	Object listMembers(int member) throws Exception;
+
+	// the same, scanning the store on every core
+	Object listMembersInParallel(int member) throws Exception;
+
+	Object sendFriendshipTo(int member, int other) throws Exception;
+
+	Object acceptAllFriendships(int member) throws Exception;
+
+	Object recommendFriends(int member) throws Exception;
+
+	Object leave(String userName) throws Exception;
+
+	// requests friendships to one member from others, chosen at random, to have some to accept
+	void requestFriendships(int member, int requests) throws Exception;
+
+	// joins a member with friendship requests out to others, and opens its session, for it to leave
+	void joinWithRequests(String userName, int requests) throws Exception;
+
+	@Override
+	void close();
+
+}
@@ -1,4 +1,5 @@
-import java.util.HashSet;
+import java.util.AbstractSet;
+import java.util.Iterator;
 import java.util.Set;
 
 
@@ -7,26 +8,41 @@ public class Account implements Cloneable {
 	/* 
 	 * Base persistable class for the social network: stores member information
 	 * 
+	 * Related members are stored as primitive sets of the ids that UserNameDictionary assigns
+	 * to their user names; the Set<String> getters are live views over these id sets.
 	 */
 	
+	private static final UserNameDictionary names = UserNameDictionary.getInstance();
+	
 	// unique user name 
 	private String userName;
 	
+	// dictionary id of the user name
+	private int memberId = -1;
+	
+	// version of the stored account this handle was read from: the DAO increments it on every write,
+	// and refuses a compare-and-commit of a handle whose version is no longer the stored one
+	private long version = 0;
+	
 	// by default, automatic-acceptance is off 
 	private boolean autoAccept = false;
 	
 	// members to whom the account owner owes a response: these members have sent me a friend request 
-	private Set<String> incomingRequests = new HashSet<String>();
+	private IntHashSet incomingRequests = new IntHashSet();
 	
 	// members to whom the account owner sent a friend request
-	private Set<String> outgoingRequests = new HashSet<String>();
+	private IntHashSet outgoingRequests = new IntHashSet();
 	
 	// friends of the account owner, identified by their user name
-	private Set<String> friends = new HashSet<String>();
+	private IntHashSet friends = new IntHashSet();
 	
 	// members who are forbidden to see or know about the account owner
 	// these members should not be able to send a friend request to this account
-	private Set<String> blocked = new HashSet<String>();
+	private IntHashSet blocked = new IntHashSet();
+	
+	// members who block the account owner: the reverse index of their blocked sets, 
+	// so visibility checks don't have to look at every other account
+	private IntHashSet blockedBy = new IntHashSet();
 	
 	// no viable constructor: only SocialNetwork objects can create accounts
 	protected Account() {
@@ -38,39 +54,79 @@ public class Account implements Cloneable {
 	
 	public void setUserName(String userName) {
 		this.userName = userName;
+		this.memberId = userName == null ? -1 : names.idOf(userName);
 	}
 	
-	public Set<String> blockedMembers() {
+	int memberId() {
+		return memberId;
+	}
+	
+	long version() {
+		return version;
+	}
+	
+	void setVersion(long version) {
+		this.version = version;
+	}
+	
+	// the id sets themselves, for allocation-free scans: callers must not modify them
+	IntHashSet friendIds() {
+		return friends;
+	}
+	
+	IntHashSet blockedIds() {
 		return blocked;
 	}
+	
+	// the id set of a relation itself, which AccountCodec reads and fills
+	IntHashSet relation(AccountCodec.Relation relation) {
+		switch (relation) {
+		case FRIENDS: return friends;
+		case INCOMING_REQUESTS: return incomingRequests;
+		case OUTGOING_REQUESTS: return outgoingRequests;
+		case BLOCKED: return blocked;
+		default: return blockedBy;
+		}
+	}
+	
+	public Set<String> blockedMembers() {
+		return new UserNameSet(blocked);
+	}
+	
+	public Set<String> blockedByMembers() {
+		return new UserNameSet(blockedBy);
+	}
 
 	public Set<String> getIncomingRequests() {
-		return incomingRequests;
+		return new UserNameSet(incomingRequests);
 	}
 	
 	public Set<String> getOutgoingRequests() {
-		return outgoingRequests;
+		return new UserNameSet(outgoingRequests);
 	}
 	
 	public Set<String> getFriends() {
-		return friends;
+		return new UserNameSet(friends);
 	}
 	
 	// block a member from seeing and knowing about this account owner
+	// also updates the blocked member's reverse index
 	public void block(Account member) {
-		blocked.add(member.getUserName());
+		blocked.add(member.memberId);
+		member.blockedBy.add(this.memberId);
 	}
 	
 	// unblock a member 
 	public void unblock(Account member) {
-		blocked.remove(member.getUserName());
+		blocked.remove(member.memberId);
+		member.blockedBy.remove(this.memberId);
 	}
 
 	// request friendship from this account owner (unless blocked)
 	public void requestFriendship(Account fromMember) {
-		if (this.blocked.contains(fromMember)) return;
-		incomingRequests.add(fromMember.getUserName());
-		fromMember.getOutgoingRequests().add(this.getUserName());
+		if (this.blocked.contains(fromMember.memberId)) return;
+		incomingRequests.add(fromMember.memberId);
+		fromMember.outgoingRequests.add(this.memberId);
 		if (autoAccept) {
 			fromMember.friendshipAccepted(this);
 		}
@@ -78,8 +134,8 @@ public class Account implements Cloneable {
 	
 	// unfriend the owner of this account
 	public void cancelFriendship(Account member) {
-		friends.remove(member.getUserName());
-		member.friends.remove(this.getUserName());
+		friends.remove(member.memberId);
+		member.friends.remove(this.memberId);
 	}
 
 	public boolean hasFriends() {
@@ -89,22 +145,22 @@ public class Account implements Cloneable {
 	// notification from another member owner that a pending friend from this account has been accepted
 	// also updates notifying member's account via a callback
 	public void friendshipAccepted(Account member) {
-		friends.add(member.getUserName());
-		outgoingRequests.remove(member.getUserName());
-		member.friends.add(this.getUserName());
-		member.incomingRequests.remove(this.getUserName());
+		friends.add(member.memberId);
+		outgoingRequests.remove(member.memberId);
+		member.friends.add(this.memberId);
+		member.incomingRequests.remove(this.memberId);
 	}
 	
 	// notification from another member that a pending friend request from this account owner has been rejected 
 	// also updates notifying member's account via a callback
 	public void friendshipRejected(Account member) {
-		outgoingRequests.remove(member.getUserName());
-		member.incomingRequests.remove(this.getUserName());
+		outgoingRequests.remove(member.memberId);
+		member.incomingRequests.remove(this.memberId);
 	}
 	
 	// returns true if member is a friend of this account owner
 	public boolean hasFriend(Account member) {
-		return friends.contains(member.getUserName());
+		return friends.contains(member.memberId);
 	}
 	
 	// automatically accept all future friend requests
@@ -123,6 +179,7 @@ public class Account implements Cloneable {
 	}
 	
 	// the remaining methods allows this object to be cloned and clones to be compared using equality
+	// (equality compares the state of the accounts, not their versions)
 	
 	@Override
 	public boolean equals (Object m) {
@@ -131,6 +188,7 @@ public class Account implements Cloneable {
 		if (!this.outgoingRequests.equals(((Account) m).outgoingRequests)) return false;
 		if (!this.incomingRequests.equals(((Account) m).incomingRequests)) return false;
 		if (!this.blocked.equals(((Account) m).blocked)) return false;
+		if (!this.blockedBy.equals(((Account) m).blockedBy)) return false;
 		if (!this.friends.equals(((Account) m).friends)) return false;	
 		return true;
 	}
@@ -140,23 +198,84 @@ public class Account implements Cloneable {
 		return getUserName().hashCode();
 	}
 	
+	// brings this handle up to date with another copy of the same account
+	void copyFrom(Account other) {
+		if (other == this) return;
+		this.version = other.version;
+		this.autoAccept = other.autoAccept;
+		this.friends = new IntHashSet(other.friends);
+		this.incomingRequests = new IntHashSet(other.incomingRequests);
+		this.outgoingRequests = new IntHashSet(other.outgoingRequests);
+		this.blocked = new IntHashSet(other.blocked);
+		this.blockedBy = new IntHashSet(other.blockedBy);
+	}
+	
 	@Override 
 	protected Account clone()  {
 		Account clone = new Account();
 		clone.autoAccept = this.autoAccept;
 		clone.userName = this.userName;
-		for (String each : this.friends) {
-			clone.friends.add(each);
+		clone.memberId = this.memberId;
+		clone.version = this.version;
+		clone.friends = new IntHashSet(this.friends);
+		clone.incomingRequests = new IntHashSet(this.incomingRequests);
+		clone.outgoingRequests = new IntHashSet(this.outgoingRequests);
+		clone.blocked = new IntHashSet(this.blocked);
+		clone.blockedBy = new IntHashSet(this.blockedBy);
+		return clone;
+	}
+	
+	// live Set<String> view of an id set: reads and writes go through to the ids
+	private static class UserNameSet extends AbstractSet<String> {
+		private final IntHashSet ids;
+		
+		UserNameSet(IntHashSet ids) {
+			this.ids = ids;
 		}
-		for (String each : this.incomingRequests) {
-			clone.incomingRequests.add(each);
+		
+		@Override
+		public int size() {
+			return ids.size();
 		}
-		for (String each : this.outgoingRequests) {
-			clone.outgoingRequests.add(each);
+		
+		@Override
+		public boolean contains(Object o) {
+			if (!(o instanceof String)) return false;
+			return ids.contains(names.lookup((String) o));
 		}
-		for (String each : this.blocked) {
-			clone.blocked.add(each);
+		
+		@Override
+		public boolean add(String userName) {
+			return ids.add(names.idOf(userName));
+		}
+		
+		@Override
+		public boolean remove(Object o) {
+			if (!(o instanceof String)) return false;
+			return ids.remove(names.lookup((String) o));
+		}
+		
+		@Override
+		public void clear() {
+			ids.clear();
+		}
+		
+		@Override
+		public Iterator<String> iterator() {
+			final IntHashSet.IntIterator each = ids.iterator();
+			return new Iterator<String>() {
+				public boolean hasNext() {
+					return each.hasNext();
+				}
+				
+				public String next() {
+					return names.nameOf(each.next());
+				}
+				
+				public void remove() {
+					each.remove();
+				}
+			};
 		}
-		return clone;
 	}
 }
@@ -0,0 +1,240 @@
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+public class AccountCodec {
+
+	/*
+	 * Compact binary format of an account, for the file store, its snapshots and caches.
+	 *
+	 * Layout: [byte format][varint name length][UTF-8 user name][byte flags]
+	 * followed by one id list per Relation, in declaration order: [varint count][varint first id]
+	 * [varint gap to the next id]... The ids are sorted, so the gaps are small and most take a byte.
+	 * Varints are unsigned LEB128: seven bits per byte, low bits first, high bit set on all but the last.
+	 * The version of the account is not part of it; stores keep it next to the encoding.
+	 *
+	 * The ids are those of an Ids mapping: MEMBER_IDS uses the process-wide UserNameDictionary ids
+	 * as they are, which is only meaningful within one process; a store that outlives the process
+	 * maps them to ids of its own.
+	 *
+	 * The static accessors read single fields of an encoding in place, starting at the position of
+	 * the buffer and without moving it, so a check like "does this account block that member" needs
+	 * no Account, no strings and no id sets.
+	 */
+
+	public static final byte FORMAT = 1;
+	private static final int AUTO_ACCEPT = 1;
+
+	// the relation lists of an encoding, in the order they are written
+	public enum Relation {
+		FRIENDS, INCOMING_REQUESTS, OUTGOING_REQUESTS, BLOCKED, BLOCKED_BY
+	}
+
+	// translates the ids of the process-wide dictionary to the ids of an encoding, and back
+	public interface Ids {
+		// the encoded id of a member, assigned if the member has none yet
+		int encode(int memberId);
+		// the encoded id of a member, or -1 if it has none
+		int find(int memberId);
+		int decode(int encodedId);
+	}
+
+	public static final Ids MEMBER_IDS = new Ids() {
+		public int encode(int memberId) {
+			return memberId;
+		}
+
+		public int find(int memberId) {
+			return memberId;
+		}
+
+		public int decode(int encodedId) {
+			return encodedId;
+		}
+	};
+
+	private static final UserNameDictionary names = UserNameDictionary.getInstance();
+	private static final Relation[] RELATIONS = Relation.values();
+
+	private final Ids ids;
+
+	public AccountCodec(Ids ids) {
+		this.ids = ids;
+	}
+
+	public byte[] encode(Account member) {
+		byte[] userName = member.getUserName().getBytes(StandardCharsets.UTF_8);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(16 + userName.length);
+		out.write(FORMAT);
+		writeVarint(out, userName.length);
+		out.write(userName, 0, userName.length);
+		out.write(member.autoAccepts() ? AUTO_ACCEPT : 0);
+		for (Relation each : RELATIONS) {
+			writeIds(out, member.relation(each));
+		}
+		return out.toByteArray();
+	}
+
+	private void writeIds(ByteArrayOutputStream out, IntHashSet members) {
+		int[] encoded = new int[members.size()];
+		int next = 0;
+		for (IntHashSet.IntIterator each = members.iterator(); each.hasNext(); ) {
+			encoded[next++] = ids.encode(each.next());
+		}
+		Arrays.sort(encoded);
+		writeVarint(out, encoded.length);
+		int previous = 0;
+		for (int each : encoded) {
+			writeVarint(out, each - previous);
+			previous = each;
+		}
+	}
+
+	// decodes the encoding that starts at the position of the buffer, without moving it
+	public Account decode(ByteBuffer encoded) {
+		int at = checkFormat(encoded);
+		int length = readVarint(encoded, at);
+		at += varintSize(length);
+		Account member = new Account();
+		member.setUserName(readString(encoded, at, length));
+		at += length;
+		if ((encoded.get(at++) & AUTO_ACCEPT) != 0) member.autoAcceptFriendships();
+		for (Relation each : RELATIONS) {
+			IntHashSet members = member.relation(each);
+			int count = readVarint(encoded, at);
+			at += varintSize(count);
+			int id = 0;
+			for (int i = 0; i < count; i++) {
+				int gap = readVarint(encoded, at);
+				at += varintSize(gap);
+				id += gap;
+				members.add(ids.decode(id));
+			}
+		}
+		return member;
+	}
+
+	// whether the member is in the given relation list of the encoded account, read in place
+	public boolean contains(ByteBuffer encoded, Relation relation, Account member) {
+		int id = ids.find(member.memberId());
+		return id >= 0 && containsId(encoded, relation, id);
+	}
+
+	/*
+	 * In-place field access
+	 */
+
+	public static String userName(ByteBuffer encoded) {
+		int at = checkFormat(encoded);
+		int length = readVarint(encoded, at);
+		return readString(encoded, at + varintSize(length), length);
+	}
+
+	public static boolean autoAccepts(ByteBuffer encoded) {
+		return (encoded.get(flagsAt(encoded)) & AUTO_ACCEPT) != 0;
+	}
+
+	public static int count(ByteBuffer encoded, Relation relation) {
+		return readVarint(encoded, relationAt(encoded, relation));
+	}
+
+	// whether the encoded id is in the relation list; stops at the first larger id
+	public static boolean containsId(ByteBuffer encoded, Relation relation, int encodedId) {
+		int at = relationAt(encoded, relation);
+		int count = readVarint(encoded, at);
+		at += varintSize(count);
+		int id = 0;
+		for (int i = 0; i < count; i++) {
+			int gap = readVarint(encoded, at);
+			at += varintSize(gap);
+			id += gap;
+			if (id >= encodedId) return id == encodedId;
+		}
+		return false;
+	}
+
+	// the encoded ids of the relation list, in ascending order
+	public static int[] ids(ByteBuffer encoded, Relation relation) {
+		int at = relationAt(encoded, relation);
+		int[] ids = new int[readVarint(encoded, at)];
+		at += varintSize(ids.length);
+		int id = 0;
+		for (int i = 0; i < ids.length; i++) {
+			int gap = readVarint(encoded, at);
+			at += varintSize(gap);
+			id += gap;
+			ids[i] = id;
+		}
+		return ids;
+	}
+
+	private static int checkFormat(ByteBuffer encoded) {
+		int at = encoded.position();
+		if (encoded.get(at) != FORMAT) throw new IllegalArgumentException("Unknown account format: " + encoded.get(at));
+		return at + 1;
+	}
+
+	private static int flagsAt(ByteBuffer encoded) {
+		int at = checkFormat(encoded);
+		int length = readVarint(encoded, at);
+		return at + varintSize(length) + length;
+	}
+
+	// skips the lists before the relation without decoding their ids
+	private static int relationAt(ByteBuffer encoded, Relation relation) {
+		int at = flagsAt(encoded) + 1;
+		for (int list = 0; list < relation.ordinal(); list++) {
+			int count = readVarint(encoded, at);
+			at += varintSize(count);
+			for (int i = 0; i < count; i++) {
+				while ((encoded.get(at++) & 0x80) != 0) {
+				}
+			}
+		}
+		return at;
+	}
+
+	private static String readString(ByteBuffer encoded, int at, int length) {
+		if (encoded.hasArray()) {
+			return new String(encoded.array(), encoded.arrayOffset() + at, length, StandardCharsets.UTF_8);
+		}
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = encoded.get(at + i);
+		}
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * Varints
+	 */
+
+	static void writeVarint(ByteArrayOutputStream out, int value) {
+		while ((value & ~0x7f) != 0) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	static int readVarint(ByteBuffer in, int at) {
+		int value = 0;
+		for (int shift = 0; ; shift += 7) {
+			byte next = in.get(at++);
+			value |= (next & 0x7f) << shift;
+			if (next >= 0) return value;
+		}
+	}
+
+	static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7f) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+}
@@ -1,47 +1,1117 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
 
 
 public class AccountDAO implements IAccountDAO {
 	
-	private static boolean connected = false; 
-	
-	/* This is meant to be the real Data Access Object for persisting Account objects.
-	 * But it's not implemented yet, so it's all stubbed out.
-	 * Testing must continue in its absence, unfortunately.
+	/* This is the real Data Access Object for persisting Account objects.
+	 * 
+	 * The data base is a directory of append-only segment files. Every save, update or delete 
+	 * appends one binary record to the active segment; nothing is ever rewritten in place. 
+	 * An in-memory index maps each user name to the position of its latest record, so a 
+	 * lookup costs one positioned read. The index is rebuilt by scanning the segments when 
+	 * the data base is opened, which is how the accounts survive a process restart. 
+	 * 
+	 * Record layout: [int payload length][int CRC32 of payload][payload]
+	 * Payload layout: [byte kind][UTF user name][long version][account body], for PUT records only the 
+	 * kind and the user name. Accounts are written as ENCODED_PUT records, whose body is the AccountCodec 
+	 * encoding with ids of the store's own: a NAME record, [byte kind][UTF user name][int id], gives 
+	 * a user name its id and is appended no later than the first record that uses it. VERSIONED_PUT 
+	 * records, whose relations are lists of UTF user names, and PUT records without a version 
+	 * (version 0) come from older data bases.
+	 * A batch of writes is appended as one BATCH record whose payload is [byte kind][int count] 
+	 * followed by the nested records; its checksum covers them all, so a batch that was torn 
+	 * by a crash is dropped as a whole.
+	 * 
+	 * The segments are a write-ahead log: a write returns once its records are forced to disk. 
+	 * Concurrent writers share the forces (see GroupCommit), so a burst of writes costs a few 
+	 * forces rather than one each.
+	 * 
+	 * Once the log since the last checkpoint grows past a threshold, a background checkpoint 
+	 * copies the latest record of every account into a snapshot file, which has the format of a 
+	 * segment, and deletes the segments the snapshot replaces. Opening the data base 
+	 * loads the latest snapshot and replays only the segments written after it, so the time it 
+	 * takes depends on the number of accounts and the length of the log tail, not on the history. 
+	 * The snapshot is memory-mapped and only the headers of its records are read when it is 
+	 * loaded, for the user name index: an account is decoded, straight from the mapped file, 
+	 * on its first read, and its checksum checked then. The decoded accounts are not kept; 
+	 * DAOFactory puts a bounded CachingAccountDAO in front of the store for that. 
+	 * A snapshot is written to a temporary file and renamed when complete, so a crash during a 
+	 * checkpoint leaves the previous snapshot and the log as they were.
 	 */
 	
+	private static final byte PUT = 1;
+	private static final byte DELETE = 2;
+	private static final byte BATCH = 3;
+	private static final byte VERSIONED_PUT = 4;
+	private static final byte NAME = 5;
+	private static final byte ENCODED_PUT = 6;
+	private static final int HEADER_BYTES = 8;
+	private static final int BATCH_HEADER_BYTES = HEADER_BYTES + 5;
+	private static final long MAX_SEGMENT_BYTES = 64L * 1024 * 1024;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String SNAPSHOT_SUFFIX = ".snap";
+	private static final String TEMPORARY_SUFFIX = ".tmp";
+	// a checkpoint is taken once the log since the last one holds this many bytes
+	private static final long DEFAULT_CHECKPOINT_BYTES = 2 * MAX_SEGMENT_BYTES;
+	// batch reads merge records that are at most this far apart into one read
+	private static final int MAX_READ_GAP = 4096;
+	private static final int MAX_READ_BYTES = 1024 * 1024;
+	
+	// a record waiting to be appended
+	private static class Pending {
+		final String userName;
+		final byte kind;
+		final byte[] record;
+		final Account member;
+		long version;
+		
+		Pending(String userName, byte kind, byte[] record, Account member) {
+			this.userName = userName;
+			this.kind = kind;
+			this.record = record;
+			this.member = member;
+		}
+		
+		// sets the version of an ENCODED_PUT record, which follows its kind and user name
+		void stamp(long version) {
+			this.version = version;
+			ByteBuffer buffer = ByteBuffer.wrap(record);
+			int userNameLength = buffer.getShort(HEADER_BYTES + 1) & 0xffff;
+			buffer.putLong(HEADER_BYTES + 1 + 2 + userNameLength, version);
+			seal(record);
+		}
+	}
+	
+	// position and version of the latest record of an account
+	private static class Location {
+		final int segment;
+		final long offset;
+		final int length;
+		final long version;
+		// whether the checksum of a snapshot record was checked; a race only checks it twice
+		boolean checked;
+		
+		Location(int segment, long offset, int length, long version) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.version = version;
+		}
+	}
+	
+	private static final Comparator<Location> FILE_ORDER = new Comparator<Location>() {
+		public int compare(Location a, Location b) {
+			if (a.segment != b.segment) return Integer.compare(a.segment, b.segment);
+			return Long.compare(a.offset, b.offset);
+		}
+	};
+	
+	// the store's own ids of the user names its accounts refer to: the ids of the process-wide 
+	// dictionary differ from one run to the next, these are kept in NAME records
+	private static class StoreNames implements AccountCodec.Ids {
+		private static final UserNameDictionary members = UserNameDictionary.getInstance();
+		private final Map<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+		// the process-wide id of each store id; written before the id is published in ids
+		private volatile int[] memberIds = new int[1024];
+		private int size = 0;
+		// names that got an id but have no NAME record yet
+		private List<String> unwritten = new ArrayList<String>();
+		
+		public int encode(int memberId) {
+			String userName = members.nameOf(memberId);
+			Integer id = ids.get(userName);
+			if (id != null) return id;
+			synchronized (this) {
+				id = ids.get(userName);
+				if (id != null) return id;
+				load(userName, size);
+				unwritten.add(userName);
+				return size - 1;
+			}
+		}
+		
+		public int find(int memberId) {
+			Integer id = ids.get(members.nameOf(memberId));
+			return id == null ? -1 : id;
+		}
+		
+		public int decode(int id) {
+			return memberIds[id];
+		}
+		
+		// a name and its id, from a NAME record
+		synchronized void load(String userName, int id) {
+			int[] current = memberIds;
+			if (id >= current.length) current = Arrays.copyOf(current, Math.max(id + 1, current.length * 2));
+			current[id] = members.idOf(userName);
+			memberIds = current;
+			ids.put(userName, id);
+			size = Math.max(size, id + 1);
+		}
+		
+		synchronized int idOf(String userName) {
+			return ids.get(userName);
+		}
+		
+		// the names that need a NAME record, which the caller appends
+		synchronized List<String> takeUnwritten() {
+			if (unwritten.isEmpty()) return Collections.emptyList();
+			List<String> taken = unwritten;
+			unwritten = new ArrayList<String>();
+			return taken;
+		}
+		
+		// names whose NAME records couldn't be appended
+		synchronized void putBack(List<String> userNames) {
+			unwritten.addAll(0, userNames);
+		}
+		
+		// all names, by id
+		synchronized List<String> all() {
+			List<String> all = new ArrayList<String>(size);
+			for (int id = 0; id < size; id++) {
+				all.add(members.nameOf(memberIds[id]));
+			}
+			return all;
+		}
+	}
+	
+	private final File directory;
+	// the log segments by number, and the snapshot under its negated number
+	private final Map<Integer, FileChannel> segments = new HashMap<Integer, FileChannel>();
+	private final Map<String, Location> index = new HashMap<String, Location>();
+	// the latest snapshot, mapped; null if there is none, or if it is too large to map in one piece
+	private ByteBuffer mappedSnapshot;
+	private final StoreNames storeNames = new StoreNames();
+	private final AccountCodec codec = new AccountCodec(storeNames);
+	// the indexed user names in order, for scans; its iterators tolerate concurrent changes
+	private final NavigableSet<String> userNames = new ConcurrentSkipListSet<String>();
+	private int activeSegment;
+	private long activeSize;
+	private boolean connected = false; 
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final GroupCommit groupCommit = new GroupCommit(this::forceLog);
+	// number of the latest snapshot, 0 if there is none, and the bytes logged since it was taken
+	private int snapshot;
+	private long logBytes;
+	private final long checkpointBytes;
+	// one checkpoint at a time, on a thread that only exists while there is a checkpoint to take
+	private final ReentrantLock checkpointLock = new ReentrantLock();
+	private final AtomicBoolean checkpointScheduled = new AtomicBoolean();
+	private final ExecutorService checkpointer = new ThreadPoolExecutor(0, 1, 1, TimeUnit.SECONDS, 
+			new LinkedBlockingQueue<Runnable>(), task -> {
+				Thread thread = new Thread(task, "account-checkpoint");
+				thread.setDaemon(true);
+				return thread;
+			});
+	private long checkpoints;
+	
 	public AccountDAO (String dataBase) {
-		// should establish connection to DB; 
-		// should set connected to true if already connected to DB or if connection succeeds 
+		this(dataBase, DEFAULT_CHECKPOINT_BYTES);
+	}
+	
+	// checkpoints once the log since the last checkpoint holds checkpointBytes
+	public AccountDAO (String dataBase, long checkpointBytes) {
+		if (checkpointBytes <= 0) throw new IllegalArgumentException("Checkpoint threshold must be positive: " + checkpointBytes);
+		directory = new File(dataBase);
+		this.checkpointBytes = checkpointBytes;
+		try {
+			open();
+		} catch (IOException e) {
+			closeSegments();
+			throw new UncheckedIOException("Cannot open account data base " + dataBase, e);
+		}
+		connected = true;
 	}
 	
 	public boolean isConnectedToDB() {
-		return connected;
+		lock.readLock().lock();
+		try {
+			return connected;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	// closes all segment files, after a running checkpoint; the data base can be opened again with a new AccountDAO
+	public void close() {
+		checkpointer.shutdown();
+		checkpointLock.lock();
+		lock.writeLock().lock();
+		try {
+			if (!connected) return;
+			connected = false;
+			try {
+				segments.get(activeSegment).force(false);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				mappedSnapshot = null;
+				closeSegments();
+			}
+		} finally {
+			lock.writeLock().unlock();
+			checkpointLock.unlock();
+		}
 	}
 
+	/*
+	 * Lookups share the read lock and run in parallel, as positioned reads don't move a channel's position; 
+	 * writes take the write lock only to append, the records are encoded before.
+	 */
+
 	public void save(Account member) {
-		// TODO Auto-generated method stub
-		
+		Pending record = put(member);
+		long sequence = 0;
+		lock.writeLock().lock();
+		try {
+			// like a set, an existing account with the same user name is kept
+			if (!index.containsKey(member.getUserName())) {
+				record.stamp(0);
+				sequence = appendAll(Collections.singletonList(record));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
 	}
 
 	public Account findByUserName(String userName) {
-		// TODO Auto-generated method stub
-		return null;
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			Location location = index.get(userName);
+			if (location == null) return null;
+			return read(location);
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 
 	public void delete(Account member) {
-		// TODO Auto-generated method stub
-		
+		Pending record = delete(member.getUserName());
+		long sequence = 0;
+		lock.writeLock().lock();
+		try {
+			if (index.containsKey(member.getUserName())) sequence = appendAll(Collections.singletonList(record));
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
 	}
 
 	public void update(Account member) {
-		// TODO Auto-generated method stub
-		
+		Pending record = put(member);
+		long sequence;
+		lock.writeLock().lock();
+		try {
+			record.stamp(nextVersion(member.getUserName()));
+			sequence = appendAll(Collections.singletonList(record));
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
+	}
+
+	// the batch operations append all their records at once, as one BATCH record
+	
+	public void saveAll(Collection<Account> members) {
+		List<Pending> encoded = new ArrayList<Pending>(members.size());
+		for (Account each : members) {
+			encoded.add(put(each));
+		}
+		long sequence;
+		lock.writeLock().lock();
+		try {
+			List<Pending> records = new ArrayList<Pending>(encoded.size());
+			Set<String> saved = new HashSet<String>();
+			for (Pending each : encoded) {
+				if (index.containsKey(each.userName) || !saved.add(each.userName)) continue;
+				each.stamp(0);
+				records.add(each);
+			}
+			sequence = appendAll(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
+	}
+	
+	public void updateAll(Collection<Account> members) {
+		List<Pending> records = new ArrayList<Pending>(members.size());
+		for (Account each : members) {
+			records.add(put(each));
+		}
+		long sequence;
+		lock.writeLock().lock();
+		try {
+			stampAll(records);
+			sequence = appendAll(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
+	}
+	
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		List<Pending> records = new ArrayList<Pending>(updates.size() + deletes.size());
+		for (Account each : updates) {
+			records.add(put(each));
+		}
+		for (Account each : deletes) {
+			records.add(delete(each.getUserName()));
+		}
+		long sequence;
+		lock.writeLock().lock();
+		try {
+			ensureConnected();
+			for (Account each : updates) {
+				if (!isCurrent(each)) return false;
+			}
+			for (Account each : deletes) {
+				if (!isCurrent(each)) return false;
+			}
+			stampAll(records);
+			sequence = appendAll(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
+		return true;
+	}
+	
+	private boolean isCurrent(Account member) {
+		Location location = index.get(member.getUserName());
+		return location != null && location.version == member.version();
+	}
+	
+	private long nextVersion(String userName) {
+		Location location = index.get(userName);
+		return location == null ? 0 : location.version + 1;
+	}
+	
+	// versions the records of a batch in order, so an account written twice ends up with the later version
+	private void stampAll(List<Pending> records) {
+		Map<String, Long> versions = new HashMap<String, Long>();
+		for (Pending each : records) {
+			if (each.kind == DELETE) continue;
+			Long previous = versions.get(each.userName);
+			long version = previous == null ? nextVersion(each.userName) : previous + 1;
+			each.stamp(version);
+			versions.put(each.userName, version);
+		}
+	}
+	
+	// every write returns once it is durable, so this only forces the log for writes still waiting 
+	// for their group commit; with none, as after a read-only session, it doesn't touch the disk
+	public void flush() {
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			groupCommit.awaitAllDurable();
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	public void deleteAll(Collection<Account> members) {
+		long sequence;
+		lock.writeLock().lock();
+		try {
+			List<Pending> records = new ArrayList<Pending>(members.size());
+			for (Account each : members) {
+				if (index.containsKey(each.getUserName())) records.add(delete(each.getUserName()));
+			}
+			sequence = appendAll(records);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		awaitDurable(sequence);
 	}
 
 	public Set<Account> findAll() {
-		// TODO Auto-generated method stub
-		return null;
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			Set<Account> all = new HashSet<Account>();
+			for (Location each : index.values()) {
+				all.add(read(each));
+			}
+			return all;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	// reads the records in file order, merging nearby records into one read
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			List<Location> locations = new ArrayList<Location>(userNames.size());
+			for (String each : userNames) {
+				Location location = index.get(each);
+				if (location != null) locations.add(location);
+			}
+			Collections.sort(locations, FILE_ORDER);
+			Map<String, Account> found = new HashMap<String, Account>();
+			int first = 0;
+			while (first < locations.size()) {
+				Location start = locations.get(first);
+				long end = start.offset + start.length;
+				int last = first;
+				while (last + 1 < locations.size()) {
+					Location next = locations.get(last + 1);
+					if (next.segment != start.segment || next.offset - end > MAX_READ_GAP
+							|| next.offset + next.length - start.offset > MAX_READ_BYTES) break;
+					end = Math.max(end, next.offset + next.length);
+					last++;
+				}
+				ByteBuffer run = bytesAt(start.segment, start.offset, (int) (end - start.offset));
+				for (int each = first; each <= last; each++) {
+					Location location = locations.get(each);
+					Account member = decodeRecord(run, (int) (location.offset - start.offset), location);
+					found.put(member.getUserName(), member);
+				}
+				first = last + 1;
+			}
+			return found;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public Set<String> findAllUserNames() {
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			return new HashSet<String>(index.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public Iterator<String> scanUserNames(String afterUserName) {
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			if (afterUserName == null) return userNames.iterator();
+			return userNames.tailSet(afterUserName, false).iterator();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	// splits the ordered user names; each account is read under the read lock as the scan reaches it, 
+	// so scanning threads share the lock with the writers instead of holding it for the whole scan
+	public Spliterator<String> splitUserNames() {
+		lock.readLock().lock();
+		try {
+			ensureConnected();
+			return userNames.spliterator();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	public Spliterator<Account> splitAccounts() {
+		return new ReadingSpliterator<String, Account>(splitUserNames(), this::findByUserName);
+	}
+	
+	/*
+	 * Writing and reading records
+	 */
+	
+	// the version is stamped into the record once the write lock is held
+	private Pending put(Account member) {
+		return new Pending(member.getUserName(), ENCODED_PUT, 
+				encodeRecord(member.getUserName(), ENCODED_PUT, codec.encode(member)), member);
+	}
+	
+	private static Pending name(String userName, int id) {
+		return new Pending(userName, NAME, encodeRecord(userName, NAME, ByteBuffer.allocate(4).putInt(id).array()), null);
+	}
+	
+	private static Pending delete(String userName) {
+		return new Pending(userName, DELETE, encodeRecord(userName, DELETE, new byte[0]), null);
+	}
+	
+	private static byte[] encodeRecord(String userName, byte kind, byte[] body) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_BYTES + 64 + body.length);
+			DataOutputStream record = new DataOutputStream(bytes);
+			record.writeInt(0);
+			record.writeInt(0);
+			record.writeByte(kind);
+			record.writeUTF(userName);
+			if (kind == ENCODED_PUT) record.writeLong(0);
+			record.write(body);
+			return seal(bytes.toByteArray());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	// fills in the header of a record whose payload follows its (empty) header
+	private static byte[] seal(byte[] record) {
+		int length = record.length - HEADER_BYTES;
+		ByteBuffer header = ByteBuffer.wrap(record);
+		header.putInt(length);
+		header.putInt(checksum(record, HEADER_BYTES, length));
+		return record;
+	}
+	
+	// appends the records in one write: a single record as is, several as one BATCH record, preceded 
+	// by the NAME records of new names; returns the group commit sequence number to wait for, 0 if there 
+	// was nothing to append
+	private long appendAll(List<Pending> records) {
+		ensureConnected();
+		if (records.isEmpty()) return 0;
+		List<String> newNames = storeNames.takeUnwritten();
+		if (!newNames.isEmpty()) {
+			List<Pending> named = new ArrayList<Pending>(newNames.size() + records.size());
+			for (String each : newNames) {
+				named.add(name(each, storeNames.idOf(each)));
+			}
+			named.addAll(records);
+			records = named;
+		}
+		try {
+			byte[] bytes;
+			long[] offsets = new long[records.size()];
+			if (records.size() == 1) {
+				bytes = records.get(0).record;
+			} else {
+				int length = BATCH_HEADER_BYTES;
+				for (Pending each : records) {
+					length += each.record.length;
+				}
+				ByteBuffer batch = ByteBuffer.allocate(length);
+				batch.position(HEADER_BYTES);
+				batch.put(BATCH);
+				batch.putInt(records.size());
+				for (int each = 0; each < records.size(); each++) {
+					offsets[each] = batch.position();
+					batch.put(records.get(each).record);
+				}
+				bytes = seal(batch.array());
+			}
+			if (activeSize + bytes.length > MAX_SEGMENT_BYTES && activeSize > 0) {
+				rollSegment();
+			}
+			FileChannel channel = segments.get(activeSegment);
+			long start = activeSize;
+			ByteBuffer buffer = ByteBuffer.wrap(bytes);
+			while (buffer.hasRemaining()) {
+				activeSize += channel.write(buffer, activeSize);
+			}
+			for (int each = 0; each < records.size(); each++) {
+				Pending record = records.get(each);
+				if (record.kind == NAME) continue;
+				if (record.kind == DELETE) {
+					indexRemove(record.userName);
+				} else {
+					indexPut(record.userName, new Location(activeSegment, start + offsets[each], record.record.length, record.version));
+					record.member.setVersion(record.version);
+				}
+			}
+			logBytes += bytes.length;
+			if (logBytes >= checkpointBytes) scheduleCheckpoint();
+			return groupCommit.appended();
+		} catch (IOException e) {
+			storeNames.putBack(newNames);
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	/*
+	 * Durability: group commit and checkpoints
+	 */
+	
+	// waits until the records appended with the given sequence number are on disk
+	private void awaitDurable(long sequence) {
+		if (sequence == 0) return;
+		try {
+			groupCommit.awaitDurable(sequence);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	// forces the active segment, which covers everything appended: rolling a segment forces it
+	private void forceLog() throws IOException {
+		FileChannel channel;
+		lock.readLock().lock();
+		try {
+			// closing forces the log too
+			if (!connected) return;
+			channel = segments.get(activeSegment);
+		} finally {
+			lock.readLock().unlock();
+		}
+		try {
+			channel.force(false);
+		} catch (ClosedChannelException e) {
+			// closed since, after being forced
+		}
+	}
+	
+	GroupCommit groupCommit() {
+		return groupCommit;
+	}
+	
+	private void scheduleCheckpoint() {
+		if (!checkpointScheduled.compareAndSet(false, true)) return;
+		try {
+			checkpointer.execute(() -> {
+				try {
+					checkpoint();
+				} catch (RuntimeException e) {
+					// the log keeps growing, and the next append schedules another attempt
+				} finally {
+					checkpointScheduled.set(false);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// closing
+			checkpointScheduled.set(false);
+		}
+	}
+	
+	// writes the latest record of every account to a new snapshot, and deletes the segments and the 
+	// snapshot it replaces; writers only wait for the start and the end of it
+	public void checkpoint() {
+		checkpointLock.lock();
+		try {
+			int number;
+			long covered;
+			Map<String, Location> live;
+			Map<Integer, FileChannel> sources;
+			List<String> names;
+			lock.writeLock().lock();
+			try {
+				ensureConnected();
+				if (snapshot > 0 && logBytes == 0) return;
+				// the snapshot replaces everything before the segment the log goes on with
+				rollSegment();
+				number = activeSegment;
+				covered = logBytes;
+				live = new HashMap<String, Location>(index);
+				sources = new HashMap<Integer, FileChannel>(segments);
+				names = storeNames.all();
+			} finally {
+				lock.writeLock().unlock();
+			}
+			File temporary = new File(directory, fileName(number, SNAPSHOT_SUFFIX) + TEMPORARY_SUFFIX);
+			Map<String, Location> copied;
+			try {
+				copied = writeSnapshot(number, names, live, sources, temporary);
+				Files.move(temporary.toPath(), new File(directory, fileName(number, SNAPSHOT_SUFFIX)).toPath(), 
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				temporary.delete();
+				throw new UncheckedIOException(e);
+			}
+			lock.writeLock().lock();
+			try {
+				segments.put(-number, openFile(fileName(number, SNAPSHOT_SUFFIX)));
+				mappedSnapshot = map(segments.get(-number));
+				// accounts written since the snapshot was started keep their newer records
+				for (Map.Entry<String, Location> each : copied.entrySet()) {
+					if (index.get(each.getKey()) == live.get(each.getKey())) index.put(each.getKey(), each.getValue());
+				}
+				for (int each : sources.keySet()) {
+					if (each >= number) continue;
+					FileChannel retired = segments.remove(each);
+					retired.close();
+					new File(directory, each < 0 ? fileName(-each, SNAPSHOT_SUFFIX) : fileName(each, SEGMENT_SUFFIX)).delete();
+				}
+				snapshot = number;
+				logBytes -= covered;
+				checkpoints++;
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			} finally {
+				lock.writeLock().unlock();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			checkpointLock.unlock();
+		}
+	}
+	
+	// writes the NAME records of the store's names, then copies the given records, in file order, 
+	// into a snapshot file; returns where the records are in it
+	private static Map<String, Location> writeSnapshot(int number, List<String> names, Map<String, Location> live, 
+			Map<Integer, FileChannel> sources, File file) throws IOException {
+		List<Map.Entry<String, Location>> records = new ArrayList<Map.Entry<String, Location>>(live.entrySet());
+		Collections.sort(records, (a, b) -> FILE_ORDER.compare(a.getValue(), b.getValue()));
+		Map<String, Location> copied = new HashMap<String, Location>();
+		try (FileChannel snapshot = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+			long offset = 0;
+			for (int id = 0; id < names.size(); id++) {
+				ByteBuffer record = ByteBuffer.wrap(name(names.get(id), id).record);
+				while (record.hasRemaining()) {
+					offset += snapshot.write(record, offset);
+				}
+			}
+			for (Map.Entry<String, Location> each : records) {
+				Location location = each.getValue();
+				ByteBuffer record = ByteBuffer.allocate(location.length);
+				readFully(sources.get(location.segment), record, location.offset);
+				record.flip();
+				while (record.hasRemaining()) {
+					offset += snapshot.write(record, offset);
+				}
+				copied.put(each.getKey(), new Location(-number, offset - location.length, location.length, location.version));
+			}
+			snapshot.force(true);
+		}
+		return copied;
+	}
+	
+	long logBytes() {
+		lock.readLock().lock();
+		try {
+			return logBytes;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	long checkpointCount() {
+		lock.readLock().lock();
+		try {
+			return checkpoints;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	private Account read(Location location) {
+		return decodeRecord(bytesAt(location.segment, location.offset, location.length), 0, location);
+	}
+	
+	// the bytes of a file from the offset on, at index 0 of the buffer: a view of the mapped 
+	// snapshot, or read from the file
+	private ByteBuffer bytesAt(int segment, long offset, int length) {
+		if (segment == -snapshot && mappedSnapshot != null) {
+			ByteBuffer view = mappedSnapshot.duplicate();
+			view.position((int) offset);
+			view.limit((int) offset + length);
+			return view.slice();
+		}
+		try {
+			ByteBuffer bytes = ByteBuffer.allocate(length);
+			readFully(segments.get(segment), bytes, offset);
+			return bytes;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	// decodes the record at the given index of the buffer; snapshot records are checked on their first read, 
+	// as loading the snapshot doesn't read them
+	private Account decodeRecord(ByteBuffer bytes, int at, Location location) {
+		try {
+			int length = bytes.getInt(at);
+			int payload = at + HEADER_BYTES;
+			if (location.segment < 0 && !location.checked) {
+				ByteBuffer checked = bytes.duplicate();
+				checked.position(payload);
+				checked.limit(payload + length);
+				if (checksum(checked) != bytes.getInt(at + 4)) {
+					throw new IOException("Corrupt record in snapshot " + fileName(-location.segment, SNAPSHOT_SUFFIX) 
+							+ " at " + location.offset);
+				}
+				location.checked = true;
+			}
+			byte kind = bytes.get(payload);
+			int versionAt = payload + 3 + (bytes.getShort(payload + 1) & 0xffff);
+			long version = kind == PUT ? 0 : bytes.getLong(versionAt);
+			Account member;
+			if (kind == ENCODED_PUT) {
+				ByteBuffer body = bytes.duplicate();
+				body.position(versionAt + 8);
+				member = codec.decode(body);
+			} else {
+				byte[] copy = new byte[length];
+				ByteBuffer source = bytes.duplicate();
+				source.position(payload);
+				source.get(copy);
+				DataInputStream in = new DataInputStream(new ByteArrayInputStream(copy));
+				in.readByte();
+				String userName = in.readUTF();
+				if (kind != PUT) in.readLong();
+				member = decode(userName, in);
+			}
+			member.setVersion(version);
+			return member;
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+	
+	private void indexPut(String userName, Location location) {
+		if (index.put(userName, location) == null) userNames.add(userName);
+	}
+	
+	private void indexRemove(String userName) {
+		if (index.remove(userName) != null) userNames.remove(userName);
+	}
+	
+	// the body of a VERSIONED_PUT or PUT record
+	private static Account decode(String userName, DataInputStream body) throws IOException {
+		Account member = new Account();
+		member.setUserName(userName);
+		if (body.readBoolean()) member.autoAcceptFriendships();
+		readNames(body, member.getFriends());
+		readNames(body, member.getIncomingRequests());
+		readNames(body, member.getOutgoingRequests());
+		readNames(body, member.blockedMembers());
+		// records written before the blocked-by index was added end here
+		if (body.available() > 0) readNames(body, member.blockedByMembers());
+		return member;
+	}
+	
+	private static void readNames(DataInputStream in, Set<String> names) throws IOException {
+		for (int count = in.readInt(); count > 0; count--) {
+			names.add(in.readUTF());
+		}
+	}
+	
+	private static int checksum(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+	
+	// the checksum of the bytes from the position to the limit of the buffer, which it consumes
+	private static int checksum(ByteBuffer bytes) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+		return (int) crc.getValue();
+	}
+	
+	/*
+	 * Segment management and recovery
+	 */
+	
+	private void open() throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create directory " + directory);
+		}
+		List<Integer> numbers = new ArrayList<Integer>();
+		List<Integer> snapshots = new ArrayList<Integer>();
+		File[] files = directory.listFiles();
+		for (File each : files) {
+			String name = each.getName();
+			if (name.endsWith(SEGMENT_SUFFIX)) {
+				numbers.add(Integer.parseInt(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+			} else if (name.endsWith(SNAPSHOT_SUFFIX)) {
+				snapshots.add(Integer.parseInt(name.substring(0, name.length() - SNAPSHOT_SUFFIX.length())));
+			} else if (name.endsWith(TEMPORARY_SUFFIX)) {
+				// a checkpoint that didn't finish
+				each.delete();
+			}
+		}
+		Collections.sort(numbers);
+		Collections.sort(snapshots);
+		if (!snapshots.isEmpty()) {
+			// the latest snapshot replaces the older ones and the segments before it, which a crash 
+			// may have left behind at the end of a checkpoint
+			snapshot = snapshots.get(snapshots.size() - 1);
+			for (int each : snapshots.subList(0, snapshots.size() - 1)) {
+				new File(directory, fileName(each, SNAPSHOT_SUFFIX)).delete();
+			}
+			for (Iterator<Integer> each = numbers.iterator(); each.hasNext(); ) {
+				int number = each.next();
+				if (number >= snapshot) continue;
+				new File(directory, fileName(number, SEGMENT_SUFFIX)).delete();
+				each.remove();
+			}
+			segments.put(-snapshot, openFile(fileName(snapshot, SNAPSHOT_SUFFIX)));
+			mappedSnapshot = map(segments.get(-snapshot));
+			if (mappedSnapshot != null) {
+				indexSnapshot();
+			} else {
+				replay(-snapshot);
+			}
+		}
+		if (numbers.isEmpty()) numbers.add(Math.max(1, snapshot));
+		for (int each : numbers) {
+			segments.put(each, openSegment(each));
+		}
+		for (int each : numbers) {
+			activeSegment = each;
+			activeSize = replay(each);
+			logBytes += activeSize;
+		}
+	}
+	
+	// rebuilds the index from one segment; returns the size of its valid prefix
+	private long replay(int segment) throws IOException {
+		FileChannel channel = segments.get(segment);
+		long size = channel.size();
+		long offset = 0;
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+		while (offset + HEADER_BYTES <= size) {
+			header.clear();
+			readFully(channel, header, offset);
+			int length = header.getInt(0);
+			int crc = header.getInt(4);
+			if (length < 0 || offset + HEADER_BYTES + length > size) break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(channel, payload, offset + HEADER_BYTES);
+			if (checksum(payload.array(), 0, length) != crc) break;
+			if (payload.get(0) == BATCH) {
+				int count = payload.getInt(1);
+				int nested = BATCH_HEADER_BYTES - HEADER_BYTES;
+				for (int each = 0; each < count; each++) {
+					int nestedLength = HEADER_BYTES + payload.getInt(nested);
+					replayRecord(payload, nested + HEADER_BYTES, segment, offset + HEADER_BYTES + nested, nestedLength);
+					nested += nestedLength;
+				}
+			} else {
+				replayRecord(payload, 0, segment, offset, HEADER_BYTES + length);
+			}
+			offset += HEADER_BYTES + length;
+		}
+		if (offset < size) {
+			// a torn write at the tail of the log: drop it
+			channel.truncate(offset);
+		}
+		return offset;
+	}
+	
+	// indexes the mapped snapshot by the headers of its records, which a checkpoint wrote one by one and 
+	// forced before the snapshot took its name; their checksums are checked as they are read
+	private void indexSnapshot() throws IOException {
+		int offset = 0;
+		while (offset + HEADER_BYTES <= mappedSnapshot.limit()) {
+			int length = mappedSnapshot.getInt(offset);
+			if (length < 0 || offset + HEADER_BYTES + length > mappedSnapshot.limit()) {
+				throw new IOException("Truncated snapshot " + fileName(snapshot, SNAPSHOT_SUFFIX) + " at " + offset);
+			}
+			replayRecord(mappedSnapshot, offset + HEADER_BYTES, -snapshot, offset, HEADER_BYTES + length);
+			offset += HEADER_BYTES + length;
+		}
+	}
+	
+	// indexes one account record, or loads a NAME record, given the index of its payload in the buffer
+	private void replayRecord(ByteBuffer bytes, int payload, int segment, long offset, int length) throws IOException {
+		byte kind = bytes.get(payload);
+		String userName = readUTF(bytes, payload + 1);
+		int after = payload + 3 + (bytes.getShort(payload + 1) & 0xffff);
+		if (kind == NAME) {
+			storeNames.load(userName, bytes.getInt(after));
+		} else if (kind == DELETE) {
+			indexRemove(userName);
+		} else {
+			long version = kind == PUT ? 0 : bytes.getLong(after);
+			indexPut(userName, new Location(segment, offset, length, version));
+		}
+	}
+	
+	// reads a string written with DataOutput.writeUTF at the given index of the buffer
+	private static String readUTF(ByteBuffer bytes, int at) throws IOException {
+		byte[] utf = new byte[2 + (bytes.getShort(at) & 0xffff)];
+		ByteBuffer source = bytes.duplicate();
+		source.position(at);
+		source.get(utf);
+		return new DataInputStream(new ByteArrayInputStream(utf)).readUTF();
+	}
+	
+	// maps a snapshot read-only, or returns null if it is too large for one buffer
+	private static ByteBuffer map(FileChannel snapshot) throws IOException {
+		long size = snapshot.size();
+		if (size > Integer.MAX_VALUE) return null;
+		return snapshot.map(FileChannel.MapMode.READ_ONLY, 0, size);
+	}
+	
+	private void rollSegment() throws IOException {
+		segments.get(activeSegment).force(false);
+		activeSegment++;
+		activeSize = 0;
+		segments.put(activeSegment, openSegment(activeSegment));
+	}
+	
+	private FileChannel openSegment(int number) throws IOException {
+		return openFile(fileName(number, SEGMENT_SUFFIX));
+	}
+	
+	private FileChannel openFile(String name) throws IOException {
+		return FileChannel.open(new File(directory, name).toPath(), StandardOpenOption.CREATE, 
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+	
+	private static String fileName(int number, String suffix) {
+		return String.format("%08d%s", number, suffix);
+	}
+	
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) throw new EOFException();
+		}
+	}
+	
+	private void closeSegments() {
+		for (FileChannel each : segments.values()) {
+			try {
+				each.close();
+			} catch (IOException e) {
+				// nothing left to do with a channel that fails to close
+			}
+		}
+		segments.clear();
+	}
+	
+	private void ensureConnected() {
+		if (!connected) throw new IllegalStateException("Account data base is closed: " + directory);
 	}
 
 }
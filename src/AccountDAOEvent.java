@@ -0,0 +1,25 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+@Name("socialnetwork.AccountDAOCall")
+@Label("Account DAO Call")
+@Category("Social Network")
+@Description("A call to an IAccountDAO, see RecordingAccountDAO")
+@StackTrace(false)
+public class AccountDAOEvent extends jdk.jfr.Event {
+
+	@Label("Method")
+	String method;
+
+	@Label("Accounts")
+	@Description("Accounts or user names passed or returned; -1 where the call has none, or the result is lazy")
+	int accounts = -1;
+
+	@Label("Failed")
+	boolean failed;
+
+}
@@ -1,5 +1,13 @@
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
 
 
@@ -14,53 +22,125 @@ public class AccountDAOFake implements IAccountDAO {
 	 * In this sense, this class is a full fake that works with all inputs. 
 	 */
 
-	private Set<Account> accounts = new HashSet<Account>();
+	// rows keyed by user name, so that lookups, updates and deletes don't have to scan the whole store
+	// safe for concurrent sessions: reads don't lock, writes are serialized so that a compare-and-commit 
+	// is atomic, and callers only ever get clones of the rows
+	private Map<String, Account> accounts = new ConcurrentHashMap<String, Account>();
+	// the same user names in order, for scans; its iterators tolerate concurrent changes
+	private NavigableSet<String> userNames = new ConcurrentSkipListSet<String>();
 
 	public boolean isFullFake() {  
 		return true;
 	}
 
-	public void save(Account member) {
-		// implement this method
-		accounts.add(member.clone());
+	public synchronized void save(Account member) {
+		// like a set, an existing row with the same user name is kept
+		accounts.computeIfAbsent(member.getUserName(), userName -> {
+			userNames.add(userName);
+			Account row = member.clone();
+			row.setVersion(0);
+			return row;
+		});
 	}
 
 	public Account findByUserName(String userName)  {
-		// implement this method
-		for (Account each : accounts) {
-			if (each.getUserName().equals(userName)) {
-				return each;
-			}
+		if (userName == null) return null;
+		Account member = accounts.get(userName);
+		return member == null ? null : member.clone();
+	}
+	
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		Map<String, Account> found = new HashMap<String, Account>();
+		for (String each : userNames) {
+			if (each == null) continue;
+			Account member = accounts.get(each);
+			if (member != null) found.put(each, member.clone());
 		}
-		return null;
+		return found;
 	}
 	
 	public Set<Account> findAll()  {
-		// implement this method
-		return accounts;
+		Set<Account> all = new HashSet<Account>();
+		for (Account each : accounts.values()) {
+			all.add(each.clone());
+		}
+		return all;
 	}
 
-	public void delete(Account member) {
-		// implement this method
-		for (Account each : accounts) {
-			if (each.getUserName().equals(member.getUserName())) {
-				accounts.remove(each);
-				break;
-			}
-		}
+	public Set<String> findAllUserNames() {
+		return new HashSet<String>(accounts.keySet());
+	}
+	
+	public Iterator<String> scanUserNames(String afterUserName) {
+		if (afterUserName == null) return userNames.iterator();
+		return userNames.tailSet(afterUserName, false).iterator();
+	}
+	
+	// split over the hash table's bins, which divide evenly; every account is cloned as it is reached
+	public Spliterator<String> splitUserNames() {
+		return accounts.keySet().spliterator();
+	}
+	
+	public Spliterator<Account> splitAccounts() {
+		return new ReadingSpliterator<Account, Account>(accounts.values().spliterator(), Account::clone);
+	}
+
+	public synchronized void delete(Account member) {
+		accounts.compute(member.getUserName(), (userName, stored) -> {
+			userNames.remove(userName);
+			return null;
+		});
 	}
 
-	public void update(Account member) {
-		// implement this method
-        Account toRemove = null;
-		for (Account each : accounts) {
-			if (each.getUserName().equals(member.getUserName())) {
-				toRemove = each;
-				break;
-			}
+	public synchronized void update(Account member) {
+		final Account row = member.clone();
+		accounts.compute(member.getUserName(), (userName, stored) -> {
+			userNames.add(userName);
+			row.setVersion(stored == null ? 0 : stored.version() + 1);
+			return row;
+		});
+		member.setVersion(row.version());
+	}
+	
+	// in memory, a batch costs no more than its single operations
+	
+	public void saveAll(Collection<Account> members) {
+		for (Account each : members) {
+			save(each);
 		}
-		accounts.remove(toRemove);
-		accounts.add(member.clone());
+	}
+	
+	public void updateAll(Collection<Account> members) {
+		for (Account each : members) {
+			update(each);
+		}
+	}
+	
+	public void deleteAll(Collection<Account> members) {
+		for (Account each : members) {
+			delete(each);
+		}
+	}
+	
+	public synchronized boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		for (Account each : updates) {
+			if (!isCurrent(each)) return false;
+		}
+		for (Account each : deletes) {
+			if (!isCurrent(each)) return false;
+		}
+		updateAll(updates);
+		deleteAll(deletes);
+		return true;
+	}
+	
+	private boolean isCurrent(Account member) {
+		Account stored = accounts.get(member.getUserName());
+		return stored != null && stored.version() == member.version();
+	}
+	
+	// in memory, everything is as durable as it gets as soon as it is written
+	public void flush() {
 	}
 
 }
@@ -0,0 +1,469 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class CachingAccountDAO extends ForwardingAccountDAO {
+
+	/*
+	 * Read-through cache of accounts in front of another IAccountDAO, bounded by entry count
+	 * or by estimated bytes, with W-TinyLFU eviction.
+	 *
+	 * New entries go to a small LRU window (1% of the bound). Entries leaving the window compete
+	 * with the least recently used entry of the main space for a place there: the one accessed
+	 * more often according to a FrequencySketch wins, so a one-off scan over many accounts can't
+	 * push out the hot ones. The main space is a segmented LRU: entries hit again move from
+	 * probation to the protected segment (80% of the main space).
+	 *
+	 * Hits are served from a concurrent map without touching the backing store. They are recorded
+	 * in a ReadBuffer and applied to the policy by whichever thread next holds its lock, so readers
+	 * never queue behind each other, and the hottest accounts, whose hits contend the most, are
+	 * still counted for admission. Writes through
+	 * this DAO invalidate the accounts they touch, without the lock: they stamp the account's stripe
+	 * and remove it from the map, and the policy drops the removed entries the next time it holds
+	 * the lock. A load that raced with an invalidation of an account in its stripe is not cached,
+	 * while writes to other accounts leave it alone. Accounts are kept in their AccountCodec encoding, a few dozen bytes for most of them,
+	 * and decoded on every hit, so callers get their own copies, as from any DAO.
+	 */
+
+	private static final int WINDOW = 0;
+	private static final int PROBATION = 1;
+	private static final int PROTECTED = 2;
+	private static final int STAMP_STRIPES = 1024;
+
+	// the overhead of an entry besides its encoding: the node, the array header, the map entries
+	private static final int ENTRY_BYTES = 96;
+	private static final AccountCodec codec = new AccountCodec(AccountCodec.MEMBER_IDS);
+
+	private static class Node {
+		final String userName;
+		final byte[] encoded;
+		final long version;
+		final long weight;
+		int region;
+
+		Node(String userName, byte[] encoded, long version, long weight) {
+			this.userName = userName;
+			this.encoded = encoded;
+			this.version = version;
+			this.weight = weight;
+		}
+
+		Account account() {
+			Account member = codec.decode(ByteBuffer.wrap(encoded));
+			member.setVersion(version);
+			return member;
+		}
+	}
+
+	private final ConcurrentHashMap<String, Node> data = new ConcurrentHashMap<String, Node>();
+	// the regions in LRU order, eldest first; guarded by the eviction lock, like the weights and the sketch
+	private final LinkedHashMap<String, Node> window = new LinkedHashMap<String, Node>();
+	private final LinkedHashMap<String, Node> probation = new LinkedHashMap<String, Node>();
+	private final LinkedHashMap<String, Node> protectedSegment = new LinkedHashMap<String, Node>();
+	private final ReentrantLock evictionLock = new ReentrantLock();
+	private final FrequencySketch sketch;
+	private final boolean weighedInBytes;
+	private final long maximumWeight;
+	private final long maximumWindowWeight;
+	private final long maximumProtectedWeight;
+	private long windowWeight;
+	private long probationWeight;
+	private long protectedWeight;
+
+	// invalidations of the accounts in each stripe of user names
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+	// entries invalidated but still in the regions, until the policy next holds its lock
+	private final ConcurrentLinkedQueue<Node> invalidated = new ConcurrentLinkedQueue<Node>();
+	// hits not yet applied to the policy
+	private final ReadBuffer<Node> accesses = new ReadBuffer<Node>();
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong loads = new AtomicLong();
+	private final AtomicLong loadNanos = new AtomicLong();
+
+	// a cache of at most maximumSize accounts
+	public CachingAccountDAO(IAccountDAO delegate, int maximumSize) {
+		this(delegate, maximumSize, false, maximumSize);
+	}
+
+	// a cache of accounts whose estimated sizes add up to at most maximumBytes
+	public static CachingAccountDAO boundedByBytes(IAccountDAO delegate, long maximumBytes) {
+		// size the sketch for small accounts of about 256 bytes
+		return new CachingAccountDAO(delegate, maximumBytes, true, (int) Math.min(maximumBytes / 256, 1 << 24));
+	}
+
+	private CachingAccountDAO(IAccountDAO delegate, long maximumWeight, boolean weighedInBytes, int expectedSize) {
+		super(delegate);
+		if (maximumWeight <= 0) throw new IllegalArgumentException("Cache bound must be positive: " + maximumWeight);
+		this.maximumWeight = maximumWeight;
+		this.weighedInBytes = weighedInBytes;
+		this.maximumWindowWeight = Math.max(1, maximumWeight / 100);
+		// entries only stay once admitted to the main space, which must hold one at least
+		if (maximumWeight - maximumWindowWeight < (weighedInBytes ? ENTRY_BYTES : 1)) {
+			throw new IllegalArgumentException("Cache bound leaves no room past the window: " + maximumWeight);
+		}
+		this.maximumProtectedWeight = (maximumWeight - maximumWindowWeight) * 8 / 10;
+		this.sketch = new FrequencySketch(expectedSize);
+	}
+
+	/*
+	 * Reads
+	 */
+
+	@Override
+	public Account findByUserName(String userName) {
+		if (userName == null) return delegate.findByUserName(userName);
+		Node node = data.get(userName);
+		if (node != null) {
+			hits.incrementAndGet();
+			recordAccess(node);
+			return node.account();
+		}
+		misses.incrementAndGet();
+		long stamp = stamp(userName);
+		long start = System.nanoTime();
+		Account member = delegate.findByUserName(userName);
+		recordLoad(start, 1);
+		if (member != null) insert(member, stamp);
+		return member;
+	}
+
+	// hits are served from the cache, all misses are loaded in one batch
+	@Override
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		Map<String, Account> found = new HashMap<String, Account>();
+		List<String> missing = new ArrayList<String>();
+		for (String each : userNames) {
+			Node node = each == null ? null : data.get(each);
+			if (node == null) {
+				missing.add(each);
+			} else {
+				recordAccess(node);
+				found.put(each, node.account());
+			}
+		}
+		hits.addAndGet(found.size());
+		if (missing.isEmpty()) return found;
+		misses.addAndGet(missing.size());
+		Map<String, Long> stampsOf = new HashMap<String, Long>();
+		for (String each : missing) {
+			if (each != null) stampsOf.put(each, stamp(each));
+		}
+		long start = System.nanoTime();
+		Map<String, Account> loaded = delegate.findAllByUserNames(missing);
+		recordLoad(start, missing.size());
+		for (Account each : loaded.values()) {
+			Long stamp = stampsOf.get(each.getUserName());
+			if (stamp != null) insert(each, stamp);
+		}
+		found.putAll(loaded);
+		return found;
+	}
+
+	/*
+	 * Writes pass through and invalidate what they touch
+	 */
+
+	@Override
+	public void save(Account member) {
+		delegate.save(member);
+		invalidate(member.getUserName());
+	}
+
+	@Override
+	public void update(Account member) {
+		delegate.update(member);
+		invalidate(member.getUserName());
+	}
+
+	@Override
+	public void delete(Account member) {
+		delegate.delete(member);
+		invalidate(member.getUserName());
+	}
+
+	@Override
+	public void saveAll(Collection<Account> members) {
+		delegate.saveAll(members);
+		invalidateAll(members);
+	}
+
+	@Override
+	public void updateAll(Collection<Account> members) {
+		delegate.updateAll(members);
+		invalidateAll(members);
+	}
+
+	@Override
+	public void deleteAll(Collection<Account> members) {
+		delegate.deleteAll(members);
+		invalidateAll(members);
+	}
+
+	// a failed commit invalidates too: the cached versions it was based on are out of date
+	@Override
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		boolean committed = delegate.compareAndCommit(updates, deletes);
+		invalidateAll(updates);
+		invalidateAll(deletes);
+		return committed;
+	}
+
+	// drops the cached copy of an account, for writes that went around this cache; stamps before it 
+	// removes, and insert() puts before it checks the stamp, so a stale load is removed by one or the other
+	public void invalidate(String userName) {
+		stamps.incrementAndGet(stripeOf(userName));
+		Node node = data.remove(userName);
+		if (node == null) return;
+		invalidated.add(node);
+		if (!evictionLock.tryLock()) return;
+		try {
+			catchUp();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+	
+	private static int stripeOf(String userName) {
+		return IntIntCounter.mix(userName.hashCode()) & (STAMP_STRIPES - 1);
+	}
+	
+	private long stamp(String userName) {
+		return stamps.get(stripeOf(userName));
+	}
+
+	private void invalidateAll(Collection<Account> members) {
+		for (Account each : members) {
+			invalidate(each.getUserName());
+		}
+	}
+
+	public void invalidateAll() {
+		for (int stripe = 0; stripe < STAMP_STRIPES; stripe++) {
+			stamps.incrementAndGet(stripe);
+		}
+		evictionLock.lock();
+		try {
+			catchUp();
+			data.clear();
+			window.clear();
+			probation.clear();
+			protectedSegment.clear();
+			windowWeight = probationWeight = protectedWeight = 0;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	/*
+	 * Eviction policy
+	 */
+
+	// buffers the hit, then applies every buffered one if the lock is free
+	private void recordAccess(Node node) {
+		accesses.offer(node);
+		if (!evictionLock.tryLock()) return;
+		try {
+			catchUp();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	// with the eviction lock held: counts the hit, and moves the entry up if it is still cached
+	private void applyAccess(Node node) {
+		sketch.increment(node.userName.hashCode());
+		if (data.get(node.userName) != node) return;
+		switch (node.region) {
+		case WINDOW:
+			moveToEnd(window, node);
+			break;
+		case PROBATION:
+			probation.remove(node.userName);
+			probationWeight -= node.weight;
+			node.region = PROTECTED;
+			protectedSegment.put(node.userName, node);
+			protectedWeight += node.weight;
+			demoteProtected();
+			break;
+		default:
+			moveToEnd(protectedSegment, node);
+		}
+	}
+
+	private void insert(Account member, long stamp) {
+		byte[] encoded = codec.encode(member);
+		Node node = new Node(member.getUserName(), encoded, member.version(), weighedInBytes ? ENTRY_BYTES + encoded.length : 1);
+		evictionLock.lock();
+		try {
+			catchUp();
+			// the account may be out of date if it was invalidated since it was read
+			if (stamp != stamp(node.userName)) return;
+			sketch.increment(node.userName.hashCode());
+			if (node.weight > maximumWeight - maximumWindowWeight) return;
+			Node previous = data.put(node.userName, node);
+			if (previous != null) unlink(previous);
+			node.region = WINDOW;
+			window.put(node.userName, node);
+			windowWeight += node.weight;
+			// an invalidation between the check and the put may have missed the new entry
+			if (stamp != stamp(node.userName)) {
+				data.remove(node.userName, node);
+				unlink(node);
+				return;
+			}
+			evictFromWindow();
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	// entries leaving the window are admitted to probation if they're accessed more often than its eldest
+	private void evictFromWindow() {
+		while (windowWeight > maximumWindowWeight) {
+			Node candidate = removeEldest(window);
+			windowWeight -= candidate.weight;
+			while (candidate != null && probationWeight + protectedWeight + candidate.weight > maximumWeight - maximumWindowWeight) {
+				Node victim = eldest(probation.isEmpty() ? protectedSegment : probation);
+				if (sketch.frequency(candidate.userName.hashCode()) > sketch.frequency(victim.userName.hashCode())) {
+					data.remove(victim.userName, victim);
+					unlink(victim);
+				} else {
+					data.remove(candidate.userName, candidate);
+					candidate = null;
+				}
+				evictions.incrementAndGet();
+			}
+			if (candidate != null) {
+				candidate.region = PROBATION;
+				probation.put(candidate.userName, candidate);
+				probationWeight += candidate.weight;
+			}
+		}
+	}
+
+	private void demoteProtected() {
+		while (protectedWeight > maximumProtectedWeight) {
+			Node demoted = removeEldest(protectedSegment);
+			protectedWeight -= demoted.weight;
+			demoted.region = PROBATION;
+			probation.put(demoted.userName, demoted);
+			probationWeight += demoted.weight;
+		}
+	}
+
+	// with the eviction lock held: drops the entries invalidated since, then applies the buffered hits
+	private void catchUp() {
+		Node node;
+		while ((node = invalidated.poll()) != null) {
+			unlink(node);
+		}
+		accesses.drainTo(this::applyAccess);
+	}
+
+	// removes the entry from its region, unless a newer entry for the account took its place
+	private void unlink(Node node) {
+		switch (node.region) {
+		case WINDOW:
+			if (window.remove(node.userName, node)) windowWeight -= node.weight;
+			break;
+		case PROBATION:
+			if (probation.remove(node.userName, node)) probationWeight -= node.weight;
+			break;
+		default:
+			if (protectedSegment.remove(node.userName, node)) protectedWeight -= node.weight;
+		}
+	}
+
+	private static void moveToEnd(LinkedHashMap<String, Node> region, Node node) {
+		region.remove(node.userName);
+		region.put(node.userName, node);
+	}
+
+	private static Node eldest(LinkedHashMap<String, Node> region) {
+		return region.values().iterator().next();
+	}
+
+	private static Node removeEldest(LinkedHashMap<String, Node> region) {
+		Iterator<Node> eldest = region.values().iterator();
+		Node node = eldest.next();
+		eldest.remove();
+		return node;
+	}
+
+	// the heap an account takes in the cache: its encoding and the entry around it
+	static long estimatedBytes(Account member) {
+		return ENTRY_BYTES + codec.encode(member).length;
+	}
+
+	private void recordLoad(long start, int count) {
+		loads.addAndGet(count);
+		loadNanos.addAndGet(System.nanoTime() - start);
+	}
+
+	/*
+	 * Statistics, for sizing the cache
+	 */
+
+	public int size() {
+		return data.size();
+	}
+
+	// entries, or estimated bytes for a cache bounded by bytes
+	public long weight() {
+		evictionLock.lock();
+		try {
+			catchUp();
+			return windowWeight + probationWeight + protectedWeight;
+		} finally {
+			evictionLock.unlock();
+		}
+	}
+
+	public long hitCount() {
+		return hits.get();
+	}
+
+	public long missCount() {
+		return misses.get();
+	}
+
+	public double hitRate() {
+		long hits = hitCount();
+		long requests = hits + missCount();
+		return requests == 0 ? 0.0 : (double) hits / requests;
+	}
+
+	public long evictionCount() {
+		return evictions.get();
+	}
+
+	public long loadCount() {
+		return loads.get();
+	}
+
+	// average time spent in the backing DAO per account loaded
+	public double averageLoadNanos() {
+		long loads = loadCount();
+		return loads == 0 ? 0.0 : (double) loadNanos.get() / loads;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("CachingAccountDAO[size=%d, weight=%d/%d, hits=%d, misses=%d, hitRate=%.3f, evictions=%d, averageLoad=%.1f us]",
+				size(), weight(), maximumWeight, hitCount(), missCount(), hitRate(), evictionCount(), averageLoadNanos() / 1000);
+	}
+
+}
@@ -1,5 +1,7 @@
 import static org.mockito.Mockito.mock;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 public class DAOFactory {
 	
@@ -8,7 +10,12 @@ public class DAOFactory {
 	 */
 	
 	private static DAOFactory instance = null;
-	private static AccountDAO accountDAOImplementation = new AccountDAO("AccountDatabase");
+	private static IAccountDAO accountDAOImplementation = null;
+	// accounts decoded from the data base and kept in memory; the rest are read on demand
+	private static final int CACHED_ACCOUNTS = 100000;
+	private static final AtomicInteger fakes = new AtomicInteger();
+	// whether the DAOs handed out are instrumented; -Dsocialnetwork.instrumentDAO=true turns it on from the start
+	private volatile boolean instrumented = Boolean.getBoolean("socialnetwork.instrumentDAO");
 	
 	public static DAOFactory getInstance() {
 		// implementing a singleton
@@ -19,11 +26,41 @@ public class DAOFactory {
 	}
 	
 	public IAccountDAO getAccountDAO() {
+		// the data base is only opened (and created if missing) when first needed; opening it only 
+		// indexes the user names, and accounts are decoded as they are first read. Its calls show up 
+		// in Flight Recorder recordings, at no cost while none records them
+		synchronized (DAOFactory.class) {
+			if (accountDAOImplementation == null) {
+				IAccountDAO dataBase = new RecordingAccountDAO(
+						new CachingAccountDAO(new AccountDAO("AccountDatabase"), CACHED_ACCOUNTS));
+				accountDAOImplementation = instrumented ? instrument(dataBase, "AccountDatabase") : dataBase;
+			}
+		}
 		return accountDAOImplementation;
 	}
 
+	// fakes are short-lived and nothing closes them, so they are measured without registering MBeans, 
+	// which would stay registered for good; their dump() still reports the measurements
 	public IAccountDAO getAccountDAOFake() {
-		return new AccountDAOFake();
+		IAccountDAO fake = new AccountDAOFake();
+		return instrumented ? new InstrumentedAccountDAO(fake, "fake-" + fakes.incrementAndGet()) : fake;
+	}
+	
+	// wraps the DAOs handed out from now on in an InstrumentedAccountDAO; only the data base DAO's 
+	// MBeans are registered, and it is only wrapped if this is on before it is first asked for; mocks never are
+	public void setInstrumented(boolean instrumented) {
+		this.instrumented = instrumented;
+	}
+	
+	public boolean isInstrumented() {
+		return instrumented;
+	}
+	
+	// measures the calls to any DAO, under the given name; close the result to unregister its MBeans
+	public InstrumentedAccountDAO instrument(IAccountDAO dao, String name) {
+		InstrumentedAccountDAO instrumentedDAO = new InstrumentedAccountDAO(dao, name);
+		instrumentedDAO.registerMBeans();
+		return instrumentedDAO;
 	}
 	
 	public IAccountDAO getAccountDAOMock() {
@@ -37,7 +74,7 @@ public class DAOFactory {
 		/*
 		 *  with this method, you can check whether an IAccountDAO object is a mock object
 		 */
-		return !(dao instanceof AccountDAOFake) && !(dao instanceof AccountDAO);
+		return !(dao instanceof AccountDAOFake) && !(dao instanceof AccountDAO) && !(dao instanceof ForwardingAccountDAO);
 	}
 
 }
@@ -0,0 +1,87 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+
+
+public abstract class ForwardingAccountDAO implements IAccountDAO {
+
+	/*
+	 * Base class for decorators that add behaviour around another IAccountDAO:
+	 * every operation is passed on to the wrapped DAO unless a subclass overrides it.
+	 */
+
+	protected final IAccountDAO delegate;
+
+	protected ForwardingAccountDAO(IAccountDAO delegate) {
+		if (delegate == null) throw new IllegalArgumentException("No DAO to wrap");
+		this.delegate = delegate;
+	}
+
+	// the wrapped DAO
+	public IAccountDAO getDelegate() {
+		return delegate;
+	}
+
+	public void save(Account member) {
+		delegate.save(member);
+	}
+
+	public Account findByUserName(String userName) {
+		return delegate.findByUserName(userName);
+	}
+
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		return delegate.findAllByUserNames(userNames);
+	}
+
+	public void delete(Account member) {
+		delegate.delete(member);
+	}
+
+	public void update(Account member) {
+		delegate.update(member);
+	}
+
+	public Set<Account> findAll() {
+		return delegate.findAll();
+	}
+
+	public void saveAll(Collection<Account> members) {
+		delegate.saveAll(members);
+	}
+
+	public void updateAll(Collection<Account> members) {
+		delegate.updateAll(members);
+	}
+
+	public void deleteAll(Collection<Account> members) {
+		delegate.deleteAll(members);
+	}
+
+	public Set<String> findAllUserNames() {
+		return delegate.findAllUserNames();
+	}
+
+	public Iterator<String> scanUserNames(String afterUserName) {
+		return delegate.scanUserNames(afterUserName);
+	}
+
+	public Spliterator<String> splitUserNames() {
+		return delegate.splitUserNames();
+	}
+
+	public Spliterator<Account> splitAccounts() {
+		return delegate.splitAccounts();
+	}
+
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		return delegate.compareAndCommit(updates, deletes);
+	}
+
+	public void flush() {
+		delegate.flush();
+	}
+
+}
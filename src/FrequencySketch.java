@@ -0,0 +1,70 @@
+public class FrequencySketch {
+
+	/*
+	 * Approximate access counts of keys, for the admission policy of CachingAccountDAO (TinyLFU).
+	 *
+	 * A count-min sketch of 4-bit counters, sixteen to a long: a key is counted in four counters
+	 * and its frequency is the smallest of them, so collisions can only overestimate it.
+	 * Once as many increments as ten times the cache size have been counted, all counters are
+	 * halved, so the sketch follows changes in popularity instead of remembering old hot keys forever.
+	 *
+	 * Not thread-safe: the cache calls it under its eviction lock.
+	 */
+
+	private static final long RESET_MASK = 0x7777777777777777L;
+	private static final int MAX_COUNT = 15;
+
+	private final long[] table;
+	private final int mask;
+	private final int sampleSize;
+	private int additions;
+
+	public FrequencySketch(int maximumSize) {
+		int size = Integer.highestOneBit(Math.max(maximumSize, 16) - 1) << 1;
+		table = new long[size];
+		mask = size - 1;
+		sampleSize = 10 * Math.max(maximumSize, 16);
+	}
+
+	// estimated number of recent accesses, at most 15
+	public int frequency(int hash) {
+		int frequency = MAX_COUNT;
+		for (int depth = 0; depth < 4; depth++) {
+			int h = hashAt(hash, depth);
+			frequency = Math.min(frequency, (int) ((table[h & mask] >>> counterShift(h)) & 0xf));
+		}
+		return frequency;
+	}
+
+	public void increment(int hash) {
+		boolean added = false;
+		for (int depth = 0; depth < 4; depth++) {
+			int h = hashAt(hash, depth);
+			int index = h & mask;
+			int shift = counterShift(h);
+			if (((table[index] >>> shift) & 0xf) < MAX_COUNT) {
+				table[index] += 1L << shift;
+				added = true;
+			}
+		}
+		if (added && ++additions == sampleSize) reset();
+	}
+
+	// halves every counter
+	private void reset() {
+		for (int i = 0; i < table.length; i++) {
+			table[i] = (table[i] >>> 1) & RESET_MASK;
+		}
+		additions /= 2;
+	}
+
+	private static int hashAt(int hash, int depth) {
+		return IntIntCounter.mix(hash + depth * 0x61c88647);
+	}
+
+	// one of the sixteen counters of a long, chosen by the high bits of the hash
+	private static int counterShift(int h) {
+		return (h >>> 28) << 2;
+	}
+
+}
@@ -0,0 +1,41 @@
+
+public class FriendRecommendation {
+	
+	/*
+	 * A recommended member and the number of friends they have in common with the logged-in user.
+	 */
+	
+	private final String userName;
+	private final int mutualFriends;
+	
+	public FriendRecommendation(String userName, int mutualFriends) {
+		this.userName = userName;
+		this.mutualFriends = mutualFriends;
+	}
+	
+	public String getUserName() {
+		return userName;
+	}
+	
+	public int getMutualFriends() {
+		return mutualFriends;
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FriendRecommendation)) return false;
+		FriendRecommendation other = (FriendRecommendation) o;
+		return userName.equals(other.userName) && mutualFriends == other.mutualFriends;
+	}
+	
+	@Override
+	public int hashCode() {
+		return userName.hashCode() * 31 + mutualFriends;
+	}
+	
+	@Override
+	public String toString() {
+		return userName + " (" + mutualFriends + ")";
+	}
+
+}
@@ -0,0 +1,232 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+
+
+public class FriendshipGraph {
+	
+	/*
+	 * Read-optimized, immutable view of the friendships between members.
+	 * 
+	 * Members get dense integer ids in user name order, and the friendships are stored in 
+	 * compressed sparse row (CSR) form in a memory-mapped file: the friends of member i are 
+	 * adjacency[offsets[i]] .. adjacency[offsets[i + 1] - 1], sorted by id. Walking a friend list 
+	 * is a sequential scan over mapped ints, without loading any Account.
+	 * 
+	 * The graph is a snapshot of the DAO at the time it was built: rebuild it from the DAO 
+	 * to pick up new friendships.
+	 * 
+	 * File layout: [int magic][int version][int members][long adjacency length]
+	 *              ([int length][UTF-8 user name])* in id order, [long offset]*, [int friend id]*
+	 */
+	
+	private static final int MAGIC = 0x46524e44;
+	private static final int VERSION = 1;
+	// magic, version, members and adjacency length
+	private static final int HEADER_BYTES = 20;
+	// adjacency is mapped in chunks, since one mapping cannot exceed 2GB
+	private static final int CHUNK_SHIFT = 28;
+	private static final long CHUNK_MASK = (1L << CHUNK_SHIFT) - 1;
+	
+	private final String[] userNames;
+	private final LongBuffer offsets;
+	private final IntBuffer[] adjacency;
+	
+	private FriendshipGraph(String[] userNames, LongBuffer offsets, IntBuffer[] adjacency) {
+		this.userNames = userNames;
+		this.offsets = offsets;
+		this.adjacency = adjacency;
+	}
+	
+	// writes the friendships of every account in the DAO to file and maps the result
+	public static FriendshipGraph build(IAccountDAO accountDAO, File file) throws IOException {
+		// the accounts are read in parallel, a list per partition of the store, and the lists joined
+		List<Account> accounts = StreamSupport.stream(accountDAO.splitAccounts(), true).collect(Collectors.toList());
+		String[] userNames = new String[accounts.size()];
+		int next = 0;
+		for (Account each : accounts) {
+			userNames[next++] = each.getUserName();
+		}
+		Arrays.sort(userNames);
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (int id = 0; id < userNames.length; id++) {
+			ids.put(userNames[id], id);
+		}
+		int[][] friends = new int[userNames.length][];
+		long adjacencyLength = 0;
+		for (Account each : accounts) {
+			int[] row = new int[each.getFriends().size()];
+			int degree = 0;
+			for (String friend : each.getFriends()) {
+				Integer id = ids.get(friend);
+				// friendships with members who are no longer in the DAO are dropped
+				if (id != null) row[degree++] = id;
+			}
+			row = Arrays.copyOf(row, degree);
+			Arrays.sort(row);
+			friends[ids.get(each.getUserName())] = row;
+			adjacencyLength += degree;
+		}
+		
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(userNames.length);
+			out.writeLong(adjacencyLength);
+			for (String each : userNames) {
+				byte[] bytes = each.getBytes(StandardCharsets.UTF_8);
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+			long offset = 0;
+			for (int[] row : friends) {
+				out.writeLong(offset);
+				offset += row.length;
+			}
+			out.writeLong(offset);
+			for (int[] row : friends) {
+				for (int each : row) {
+					out.writeInt(each);
+				}
+			}
+		} finally {
+			out.close();
+		}
+		return open(file);
+	}
+	
+	// maps a graph file written by build()
+	public static FriendshipGraph open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			if (channel.size() < HEADER_BYTES) throw new IOException("Not a friendship graph file: " + file);
+			ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION) {
+				throw new IOException("Not a friendship graph file: " + file);
+			}
+			String[] userNames = new String[header.getInt()];
+			long adjacencyLength = header.getLong();
+			// the user names are of any length, so they are read, not mapped; the stream isn't closed, 
+			// as that would close the channel
+			DataInputStream names = new DataInputStream(new BufferedInputStream(
+					Channels.newInputStream(channel.position(HEADER_BYTES)), 1 << 16));
+			long position = HEADER_BYTES;
+			for (int id = 0; id < userNames.length; id++) {
+				byte[] bytes = new byte[names.readInt()];
+				names.readFully(bytes);
+				userNames[id] = new String(bytes, StandardCharsets.UTF_8);
+				position += 4 + bytes.length;
+			}
+			long offsetsBytes = 8L * (userNames.length + 1);
+			LongBuffer offsets = channel.map(FileChannel.MapMode.READ_ONLY, position, offsetsBytes).asLongBuffer();
+			position += offsetsBytes;
+			IntBuffer[] adjacency = new IntBuffer[(int) ((adjacencyLength + CHUNK_MASK) >>> CHUNK_SHIFT)];
+			for (int chunk = 0; chunk < adjacency.length; chunk++) {
+				long ints = Math.min(CHUNK_MASK + 1, adjacencyLength - ((long) chunk << CHUNK_SHIFT));
+				adjacency[chunk] = channel.map(FileChannel.MapMode.READ_ONLY, position, 4 * ints).asIntBuffer();
+				position += 4 * ints;
+			}
+			// mappings stay valid after the channel is closed
+			return new FriendshipGraph(userNames, offsets, adjacency);
+		} finally {
+			raf.close();
+		}
+	}
+	
+	public int memberCount() {
+		return userNames.length;
+	}
+	
+	// returns the id of a member, or -1 if the member is not in the graph
+	public int idOf(String userName) {
+		int id = Arrays.binarySearch(userNames, userName);
+		return id < 0 ? -1 : id;
+	}
+	
+	public String userNameOf(int id) {
+		return userNames[id];
+	}
+	
+	public int degree(int id) {
+		return (int) (offsets.get(id + 1) - offsets.get(id));
+	}
+	
+	// returns the i-th friend of a member, in id order
+	public int friend(int id, int i) {
+		long position = offsets.get(id) + i;
+		return adjacency[(int) (position >>> CHUNK_SHIFT)].get((int) (position & CHUNK_MASK));
+	}
+	
+	public boolean areFriends(int id, int other) {
+		// friend lists are sorted, so binary search
+		int low = 0;
+		int high = degree(id) - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int candidate = friend(id, middle);
+			if (candidate < other) low = middle + 1;
+			else if (candidate > other) high = middle - 1;
+			else return true;
+		}
+		return false;
+	}
+	
+	// counts, for every friend of a friend of a member, how many of the member's friends they are friends with
+	public IntIntCounter countMutualFriends(int id) {
+		int degree = degree(id);
+		long twoHop = 0;
+		for (int i = 0; i < degree; i++) {
+			twoHop += degree(friend(id, i));
+		}
+		IntIntCounter counts = new IntIntCounter((int) Math.min(twoHop, Integer.MAX_VALUE));
+		for (int i = 0; i < degree; i++) {
+			int friend = friend(id, i);
+			int friendDegree = degree(friend);
+			for (int j = 0; j < friendDegree; j++) {
+				counts.increment(friend(friend, j));
+			}
+		}
+		return counts;
+	}
+	
+	// same rule as SocialNetwork.recommendFriends: members who are friends with at least two of 
+	// the member's friends, except the member, the member's friends and members the member blocked
+	public Set<String> recommendFriends(String userName, Set<String> blocked) {
+		Set<String> recommendations = new HashSet<String>();
+		int id = idOf(userName);
+		if (id < 0) return recommendations;
+		IntIntCounter counts = countMutualFriends(id);
+		for (int slot = 0; slot < counts.capacity(); slot++) {
+			int candidate = counts.keyAt(slot);
+			if (candidate >= 0 && counts.countAt(slot) >= 2
+					&& candidate != id
+					&& !areFriends(id, candidate)
+					&& !blocked.contains(userNames[candidate])) {
+				recommendations.add(userNames[candidate]);
+			}
+		}
+		return recommendations;
+	}
+
+}
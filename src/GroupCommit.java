@@ -0,0 +1,92 @@
+import java.io.IOException;
+
+
+public class GroupCommit {
+
+	/*
+	 * Makes appended log records durable with one sync for all the writers that wait at the same time.
+	 *
+	 * A writer appends its records, takes a sequence number with appended() while it still holds the
+	 * log's write lock, releases the lock and calls awaitDurable. The first writer to find no sync
+	 * running becomes the leader: it notes the last sequence number handed out and syncs once, which
+	 * covers every record appended up to then. Writers that arrive during the sync wait for it and,
+	 * if their records came too late for it, elect the next leader among themselves, so under load
+	 * each sync commits the whole group of records appended while the previous one ran.
+	 */
+
+	// forces everything appended so far to stable storage
+	public interface Sync {
+		void sync() throws IOException;
+	}
+
+	private final Sync sync;
+	// all guarded by this
+	private long appended;
+	private long durable;
+	private boolean syncing;
+	private long syncs;
+	private long commits;
+
+	public GroupCommit(Sync sync) {
+		this.sync = sync;
+	}
+
+	// numbers a batch of appended records; call in the order the records were appended
+	public synchronized long appended() {
+		return ++appended;
+	}
+
+	// returns once the records numbered up to sequence are durable
+	public void awaitDurable(long sequence) throws IOException {
+		long target;
+		synchronized (this) {
+			commits++;
+			boolean interrupted = false;
+			while (durable < sequence && syncing) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) Thread.currentThread().interrupt();
+			if (durable >= sequence) return;
+			syncing = true;
+			target = appended;
+		}
+		boolean synced = false;
+		try {
+			sync.sync();
+			synced = true;
+		} finally {
+			synchronized (this) {
+				syncing = false;
+				if (synced) {
+					durable = Math.max(durable, target);
+					syncs++;
+				}
+				notifyAll();
+			}
+		}
+	}
+
+	// returns once everything appended so far is durable; syncs only if something isn't yet
+	public void awaitAllDurable() throws IOException {
+		long sequence;
+		synchronized (this) {
+			if (durable >= appended) return;
+			sequence = appended;
+		}
+		awaitDurable(sequence);
+	}
+
+	// number of syncs, and of writers that waited for one: their ratio is the average group size
+	public synchronized long syncCount() {
+		return syncs;
+	}
+
+	public synchronized long commitCount() {
+		return commits;
+	}
+
+}
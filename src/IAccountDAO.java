@@ -1,4 +1,8 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
 import java.util.Set;
+import java.util.Spliterator;
 
 
 public interface IAccountDAO {
@@ -7,7 +11,27 @@ public interface IAccountDAO {
 	
 	public void save(Account member); 
 	public Account findByUserName(String userName) ;
+	// batch lookup in one round trip: the accounts found, by user name; missing members are left out 
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames);
 	public void delete(Account member); 
 	public void update(Account member); 
 	public Set<Account> findAll();
+	// batch writes: each call persists all the given accounts in one round trip
+	public void saveAll(Collection<Account> members);
+	public void updateAll(Collection<Account> members);
+	public void deleteAll(Collection<Account> members);
+	// user names of all accounts, as a new set the caller may modify
+	public Set<String> findAllUserNames();
+	// user names in ascending order, starting after the given user name (null for the first), read lazily
+	public Iterator<String> scanUserNames(String afterUserName);
+	// full scans that split into partitions of the store, to be run in parallel; weakly consistent, like 
+	// scanUserNames: the user names, and the accounts, each read as the scan reaches it
+	public Spliterator<String> splitUserNames();
+	public Spliterator<Account> splitAccounts();
+	// optimistic write: if every given account still has the version it was read with, writes the updates and 
+	// the deletes atomically, in one round trip, and gives each updated account its new version; 
+	// otherwise, or if an account is gone, writes nothing and returns false
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes);
+	// durability point: returns once every write accepted so far is persisted
+	public void flush();
 }
@@ -1,4 +1,6 @@
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Stream;
 
 public interface ISocialNetwork {
 
@@ -13,11 +15,23 @@ public interface ISocialNetwork {
 	// log out 
 	public void logout();
 	
+	// login using a valid Account handle, without replacing the logged-in user:
+	// any number of members can have open sessions at the same time, each used from any thread
+	// the session offers the operations below for its member; close it to log out
+	public Session openSession(Account me) throws UserNotFoundException;
+	
 	// These operations requires the user to be logged in...
 	
 	// List all members visible to the logged-in user
 	public Set<String> listMembers() throws NoUserLoggedInException;	
 
+	// List one page of the members visible to the logged-in user, in user name order, starting after the cursor
+	// pass a null cursor for the first page, then the next cursor of the previous page
+	public MemberPage listMembers(String cursor, int pageSize) throws NoUserLoggedInException;
+	
+	// Lazily list the members visible to the logged-in user, in user name order
+	public Stream<String> streamMembers() throws NoUserLoggedInException;
+
 	// Returns true if a member has joined the social network (if visible to logged-in user)
 	public boolean hasMember(String userName) throws NoUserLoggedInException;
 
@@ -56,6 +70,10 @@ public interface ISocialNetwork {
 	// Don't recommend members blocked by the logged-in user
 	public Set<String> recommendFriends() throws NoUserLoggedInException, UserNotFoundException;
 	
+	// Recommend at most k members to logged-in user, ranked by the number of friends they have in common with the user
+	// (ties in user name order); members with a single common friend qualify too, the exclusions are as above
+	public List<FriendRecommendation> recommendFriends(int k) throws NoUserLoggedInException, UserNotFoundException;
+	
 	// Leave the social network and cease to exist to other members
 	public void leave() throws NoUserLoggedInException; 
 		
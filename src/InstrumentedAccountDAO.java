@@ -0,0 +1,380 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+
+public class InstrumentedAccountDAO extends ForwardingAccountDAO implements AutoCloseable {
+
+	/*
+	 * Measures the calls to another IAccountDAO: per method, the number of calls, of calls that
+	 * threw, and a LatencyHistogram of their times, failed calls included.
+	 *
+	 * A call costs two System.nanoTime() reads and a few uncontended increments, and allocates
+	 * nothing, so the decorator can stay on in production. The metrics are read with dump(), as
+	 * text, or over JMX once registerMBeans() has registered one MBean per method, named
+	 * socialnetwork:type=AccountDAO,name=<name>,method=<method>.
+	 */
+
+	public enum Method {
+		SAVE("save"), SAVE_ALL("saveAll"), FIND_BY_USER_NAME("findByUserName"), FIND_ALL_BY_USER_NAMES("findAllByUserNames"),
+		UPDATE("update"), UPDATE_ALL("updateAll"), DELETE("delete"), DELETE_ALL("deleteAll"), FIND_ALL("findAll"),
+		FIND_ALL_USER_NAMES("findAllUserNames"), SCAN_USER_NAMES("scanUserNames"), SPLIT_USER_NAMES("splitUserNames"),
+		SPLIT_ACCOUNTS("splitAccounts"), COMPARE_AND_COMMIT("compareAndCommit"), FLUSH("flush");
+
+		final String methodName;
+
+		Method(String methodName) {
+			this.methodName = methodName;
+		}
+	}
+
+	// the JMX view of one method's metrics; times are in microseconds
+	public interface MethodMetricsMBean {
+		long getCalls();
+		long getErrors();
+		double getMeanMicros();
+		double getP50Micros();
+		double getP99Micros();
+		double getP999Micros();
+		double getMaxMicros();
+	}
+
+	public static class MethodMetrics implements MethodMetricsMBean {
+		private final LongAdder calls = new LongAdder();
+		private final LongAdder errors = new LongAdder();
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		public long getCalls() {
+			return calls.sum();
+		}
+
+		public long getErrors() {
+			return errors.sum();
+		}
+
+		public LatencyHistogram latencies() {
+			return latencies;
+		}
+
+		public double getMeanMicros() {
+			return latencies.mean() / 1000;
+		}
+
+		public double getP50Micros() {
+			return latencies.percentile(50) / 1000.0;
+		}
+
+		public double getP99Micros() {
+			return latencies.percentile(99) / 1000.0;
+		}
+
+		public double getP999Micros() {
+			return latencies.percentile(99.9) / 1000.0;
+		}
+
+		public double getMaxMicros() {
+			return latencies.max() / 1000.0;
+		}
+	}
+
+	private static final Method[] METHODS = Method.values();
+
+	private final String name;
+	private final MethodMetrics[] metrics = new MethodMetrics[METHODS.length];
+	private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+	// the name tells the DAOs apart in dumps and MBean names
+	public InstrumentedAccountDAO(IAccountDAO delegate, String name) {
+		super(delegate);
+		this.name = name;
+		for (int i = 0; i < metrics.length; i++) {
+			metrics[i] = new MethodMetrics();
+		}
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MethodMetrics metrics(Method method) {
+		return metrics[method.ordinal()];
+	}
+
+	private void failed(Method method) {
+		metrics[method.ordinal()].errors.increment();
+	}
+
+	private void timed(Method method, long start) {
+		MethodMetrics measured = metrics[method.ordinal()];
+		measured.latencies.record(System.nanoTime() - start);
+		measured.calls.increment();
+	}
+
+	/*
+	 * Measured calls
+	 */
+
+	@Override
+	public void save(Account member) {
+		long start = System.nanoTime();
+		try {
+			delegate.save(member);
+		} catch (RuntimeException e) {
+			failed(Method.SAVE);
+			throw e;
+		} finally {
+			timed(Method.SAVE, start);
+		}
+	}
+
+	@Override
+	public void saveAll(Collection<Account> members) {
+		long start = System.nanoTime();
+		try {
+			delegate.saveAll(members);
+		} catch (RuntimeException e) {
+			failed(Method.SAVE_ALL);
+			throw e;
+		} finally {
+			timed(Method.SAVE_ALL, start);
+		}
+	}
+
+	@Override
+	public Account findByUserName(String userName) {
+		long start = System.nanoTime();
+		try {
+			return delegate.findByUserName(userName);
+		} catch (RuntimeException e) {
+			failed(Method.FIND_BY_USER_NAME);
+			throw e;
+		} finally {
+			timed(Method.FIND_BY_USER_NAME, start);
+		}
+	}
+
+	@Override
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		long start = System.nanoTime();
+		try {
+			return delegate.findAllByUserNames(userNames);
+		} catch (RuntimeException e) {
+			failed(Method.FIND_ALL_BY_USER_NAMES);
+			throw e;
+		} finally {
+			timed(Method.FIND_ALL_BY_USER_NAMES, start);
+		}
+	}
+
+	@Override
+	public void update(Account member) {
+		long start = System.nanoTime();
+		try {
+			delegate.update(member);
+		} catch (RuntimeException e) {
+			failed(Method.UPDATE);
+			throw e;
+		} finally {
+			timed(Method.UPDATE, start);
+		}
+	}
+
+	@Override
+	public void updateAll(Collection<Account> members) {
+		long start = System.nanoTime();
+		try {
+			delegate.updateAll(members);
+		} catch (RuntimeException e) {
+			failed(Method.UPDATE_ALL);
+			throw e;
+		} finally {
+			timed(Method.UPDATE_ALL, start);
+		}
+	}
+
+	@Override
+	public void delete(Account member) {
+		long start = System.nanoTime();
+		try {
+			delegate.delete(member);
+		} catch (RuntimeException e) {
+			failed(Method.DELETE);
+			throw e;
+		} finally {
+			timed(Method.DELETE, start);
+		}
+	}
+
+	@Override
+	public void deleteAll(Collection<Account> members) {
+		long start = System.nanoTime();
+		try {
+			delegate.deleteAll(members);
+		} catch (RuntimeException e) {
+			failed(Method.DELETE_ALL);
+			throw e;
+		} finally {
+			timed(Method.DELETE_ALL, start);
+		}
+	}
+
+	@Override
+	public Set<Account> findAll() {
+		long start = System.nanoTime();
+		try {
+			return delegate.findAll();
+		} catch (RuntimeException e) {
+			failed(Method.FIND_ALL);
+			throw e;
+		} finally {
+			timed(Method.FIND_ALL, start);
+		}
+	}
+
+	@Override
+	public Set<String> findAllUserNames() {
+		long start = System.nanoTime();
+		try {
+			return delegate.findAllUserNames();
+		} catch (RuntimeException e) {
+			failed(Method.FIND_ALL_USER_NAMES);
+			throw e;
+		} finally {
+			timed(Method.FIND_ALL_USER_NAMES, start);
+		}
+	}
+
+	// times getting the iterator; the scan itself is lazy
+	@Override
+	public Iterator<String> scanUserNames(String afterUserName) {
+		long start = System.nanoTime();
+		try {
+			return delegate.scanUserNames(afterUserName);
+		} catch (RuntimeException e) {
+			failed(Method.SCAN_USER_NAMES);
+			throw e;
+		} finally {
+			timed(Method.SCAN_USER_NAMES, start);
+		}
+	}
+
+	// likewise, times getting the spliterator
+	@Override
+	public Spliterator<String> splitUserNames() {
+		long start = System.nanoTime();
+		try {
+			return delegate.splitUserNames();
+		} catch (RuntimeException e) {
+			failed(Method.SPLIT_USER_NAMES);
+			throw e;
+		} finally {
+			timed(Method.SPLIT_USER_NAMES, start);
+		}
+	}
+
+	@Override
+	public Spliterator<Account> splitAccounts() {
+		long start = System.nanoTime();
+		try {
+			return delegate.splitAccounts();
+		} catch (RuntimeException e) {
+			failed(Method.SPLIT_ACCOUNTS);
+			throw e;
+		} finally {
+			timed(Method.SPLIT_ACCOUNTS, start);
+		}
+	}
+
+	@Override
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		long start = System.nanoTime();
+		try {
+			return delegate.compareAndCommit(updates, deletes);
+		} catch (RuntimeException e) {
+			failed(Method.COMPARE_AND_COMMIT);
+			throw e;
+		} finally {
+			timed(Method.COMPARE_AND_COMMIT, start);
+		}
+	}
+
+	@Override
+	public void flush() {
+		long start = System.nanoTime();
+		try {
+			delegate.flush();
+		} catch (RuntimeException e) {
+			failed(Method.FLUSH);
+			throw e;
+		} finally {
+			timed(Method.FLUSH, start);
+		}
+	}
+
+	/*
+	 * Export
+	 */
+
+	// registers one MBean per method with the platform MBean server
+	public synchronized void registerMBeans() {
+		if (!registered.isEmpty()) return;
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			for (Method each : METHODS) {
+				ObjectName objectName = new ObjectName("socialnetwork:type=AccountDAO,name=" + ObjectName.quote(name)
+						+ ",method=" + each.methodName);
+				server.registerMBean(new StandardMBean(metrics(each), MethodMetricsMBean.class), objectName);
+				registered.add(objectName);
+			}
+		} catch (JMException e) {
+			unregisterMBeans();
+			throw new IllegalStateException("Cannot register the MBeans of " + name, e);
+		}
+	}
+
+	public synchronized void unregisterMBeans() {
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		for (ObjectName each : registered) {
+			try {
+				server.unregisterMBean(each);
+			} catch (JMException e) {
+				// already gone
+			}
+		}
+		registered.clear();
+	}
+
+	@Override
+	public void close() {
+		unregisterMBeans();
+	}
+
+	// one line per method that was called: calls, errors and latencies
+	public String dump() {
+		StringBuilder dump = new StringBuilder("AccountDAO " + name + System.lineSeparator());
+		for (Method each : METHODS) {
+			MethodMetrics measured = metrics(each);
+			if (measured.getCalls() == 0) continue;
+			dump.append(String.format("  %-20s calls=%d, errors=%d, %s%n", each.methodName, measured.getCalls(), measured.getErrors(),
+					measured.latencies));
+		}
+		return dump.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+
+}
@@ -0,0 +1,186 @@
+import java.util.Arrays;
+import java.util.ConcurrentModificationException;
+import java.util.NoSuchElementException;
+
+
+public class IntHashSet {
+	
+	/*
+	 * A set of non-negative ints without boxing: open addressing with linear probing over 
+	 * one int array, kept at most half full. Removal shifts later entries of the probe run 
+	 * back, so there are no tombstones. An empty set does not allocate a table.
+	 */
+	
+	private static final int FREE = -1;
+	private static final int[] EMPTY = new int[0];
+	
+	private int[] slots = EMPTY;
+	private int size = 0;
+	private int modCount = 0;
+	
+	public IntHashSet() {
+	}
+	
+	public IntHashSet(IntHashSet other) {
+		slots = other.size == 0 ? EMPTY : other.slots.clone();
+		size = other.size;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	public boolean contains(int value) {
+		if (size == 0 || value < 0) return false;
+		return slots[slotOf(value)] == value;
+	}
+	
+	// returns true if the value was not in the set
+	public boolean add(int value) {
+		if (value < 0) throw new IllegalArgumentException("Negative value: " + value);
+		if (slots.length == 0) allocate(4);
+		int slot = slotOf(value);
+		if (slots[slot] == value) return false;
+		slots[slot] = value;
+		modCount++;
+		if (++size * 2 > slots.length) {
+			int[] old = slots;
+			allocate(old.length * 2);
+			for (int each : old) {
+				if (each != FREE) slots[slotOf(each)] = each;
+			}
+		}
+		return true;
+	}
+	
+	// returns true if the value was in the set
+	public boolean remove(int value) {
+		if (size == 0 || value < 0) return false;
+		int mask = slots.length - 1;
+		int slot = slotOf(value);
+		if (slots[slot] != value) return false;
+		// shift back the entries that probed past the freed slot
+		int free = slot;
+		int next = (free + 1) & mask;
+		while (slots[next] != FREE) {
+			int home = IntIntCounter.mix(slots[next]) & mask;
+			if (((next - home) & mask) >= ((next - free) & mask)) {
+				slots[free] = slots[next];
+				free = next;
+			}
+			next = (next + 1) & mask;
+		}
+		slots[free] = FREE;
+		size--;
+		modCount++;
+		return true;
+	}
+	
+	public void clear() {
+		if (size == 0) return;
+		slots = EMPTY;
+		size = 0;
+		modCount++;
+	}
+	
+	// the values, in ascending order
+	public int[] toSortedArray() {
+		int[] values = new int[size];
+		int next = 0;
+		for (int each : slots) {
+			if (each != FREE) values[next++] = each;
+		}
+		Arrays.sort(values);
+		return values;
+	}
+	
+	public IntIterator iterator() {
+		return new IntIterator();
+	}
+	
+	// primitive iterator; fails fast if the set is modified other than through it
+	public class IntIterator {
+		private int slot = -1;
+		private int expectedModCount = modCount;
+		// once remove() has been called, the values not visited yet are iterated from a copy
+		private int[] remaining = null;
+		private int remainingIndex = 0;
+		private int current = FREE;
+		
+		public boolean hasNext() {
+			if (remaining != null) return remainingIndex < remaining.length;
+			for (int next = slot + 1; next < slots.length; next++) {
+				if (slots[next] != FREE) return true;
+			}
+			return false;
+		}
+		
+		public int next() {
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (remaining != null) {
+				if (remainingIndex == remaining.length) throw new NoSuchElementException();
+				return current = remaining[remainingIndex++];
+			}
+			for (slot++; slot < slots.length; slot++) {
+				if (slots[slot] != FREE) return current = slots[slot];
+			}
+			throw new NoSuchElementException();
+		}
+		
+		public void remove() {
+			if (current == FREE) throw new IllegalStateException();
+			if (modCount != expectedModCount) throw new ConcurrentModificationException();
+			if (remaining == null) {
+				// removal shifts entries around, so freeze the rest of the iteration first
+				remaining = new int[size];
+				int count = 0;
+				for (int next = slot + 1; next < slots.length; next++) {
+					if (slots[next] != FREE) remaining[count++] = slots[next];
+				}
+				remaining = Arrays.copyOf(remaining, count);
+			}
+			IntHashSet.this.remove(current);
+			current = FREE;
+			expectedModCount = modCount;
+		}
+	}
+	
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof IntHashSet)) return false;
+		IntHashSet other = (IntHashSet) o;
+		if (other.size != size) return false;
+		for (int each : slots) {
+			if (each != FREE && !other.contains(each)) return false;
+		}
+		return true;
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = 0;
+		for (int each : slots) {
+			if (each != FREE) hash += each;
+		}
+		return hash;
+	}
+	
+	private int slotOf(int value) {
+		int mask = slots.length - 1;
+		int slot = IntIntCounter.mix(value) & mask;
+		while (slots[slot] != FREE && slots[slot] != value) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void allocate(int capacity) {
+		slots = new int[capacity];
+		Arrays.fill(slots, FREE);
+	}
+
+}
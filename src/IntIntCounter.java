@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+
+public class IntIntCounter {
+	
+	/*
+	 * Counts occurrences of int keys without boxing: an open-addressing hash table with linear 
+	 * probing over two parallel int arrays. Keys must not be negative. 
+	 * 
+	 * The table starts at most INITIAL_LIMIT slots large, however many keys are expected, and doubles 
+	 * as keys arrive: an upper bound like the two-hop neighbourhood of a hub can be far above the keys 
+	 * actually counted. It stops doubling at MAX_CAPACITY and then fills up to that many keys. 
+	 */
+	
+	private static final int FREE = -1;
+	private static final int INITIAL_LIMIT = 1 << 12;
+	private static final int MAX_CAPACITY = 1 << 30;
+	
+	private int[] keys;
+	private int[] counts;
+	private int size = 0;
+	
+	public IntIntCounter(int expectedKeys) {
+		int capacity = 8;
+		while (capacity < INITIAL_LIMIT && capacity / 2 < expectedKeys) {
+			capacity <<= 1;
+		}
+		allocate(capacity);
+	}
+	
+	// adds one to the count of key and returns the new count
+	public int increment(int key) {
+		int slot = slotOf(key);
+		if (keys[slot] == key) {
+			return ++counts[slot];
+		}
+		keys[slot] = key;
+		counts[slot] = 1;
+		if (++size > keys.length / 2) grow();
+		return 1;
+	}
+	
+	public int get(int key) {
+		int slot = slotOf(key);
+		return keys[slot] == key ? counts[slot] : 0;
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	// the table is exposed by slot for allocation-free iteration: 
+	// for (int slot = 0; slot < capacity(); slot++) if (keyAt(slot) >= 0) ...
+	public int capacity() {
+		return keys.length;
+	}
+	
+	public int keyAt(int slot) {
+		return keys[slot];
+	}
+	
+	public int countAt(int slot) {
+		return counts[slot];
+	}
+	
+	private int slotOf(int key) {
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+		while (keys[slot] != FREE && keys[slot] != key) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+	
+	private void grow() {
+		if (keys.length == MAX_CAPACITY) {
+			// a full table would have no free slot to end a probe
+			if (size == MAX_CAPACITY - 1) throw new IllegalStateException("Cannot count more than " + size + " keys");
+			return;
+		}
+		int[] oldKeys = keys;
+		int[] oldCounts = counts;
+		allocate(keys.length * 2);
+		for (int slot = 0; slot < oldKeys.length; slot++) {
+			if (oldKeys[slot] != FREE) {
+				int newSlot = slotOf(oldKeys[slot]);
+				keys[newSlot] = oldKeys[slot];
+				counts[newSlot] = oldCounts[slot];
+			}
+		}
+	}
+	
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		counts = new int[capacity];
+		Arrays.fill(keys, FREE);
+	}
+	
+	static int mix(int key) {
+		// spread consecutive ids over the table (Fibonacci hashing)
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+}
@@ -0,0 +1,105 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class LatencyHistogram {
+
+	/*
+	 * Counts latencies in log-linear buckets, for percentiles like p99 and p999 without keeping
+	 * every sample.
+	 *
+	 * Values below 64 ns get a bucket each; above that, every power of two is split into 32 buckets,
+	 * so a percentile is off by at most 1/32 (3%) of its value, over the whole range of a long, in
+	 * under 2,000 counters. Recording is a few shifts and increments, without locks or allocation: any
+	 * number of threads can record into one histogram while another reads it.
+	 */
+
+	private static final int SUB_BUCKET_BITS = 5;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS + 2 * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	// adders, as every recording thread updates them
+	private final LongAdder total = new LongAdder();
+	private final LongAdder sum = new LongAdder();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long nanos) {
+		if (nanos < 0) nanos = 0;
+		counts.incrementAndGet(bucketOf(nanos));
+		total.increment();
+		sum.add(nanos);
+		long current;
+		while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+		}
+	}
+
+	// adds the counts of another histogram to this one
+	public void add(LatencyHistogram other) {
+		for (int i = 0; i < BUCKETS; i++) {
+			long count = other.counts.get(i);
+			if (count > 0) counts.addAndGet(i, count);
+		}
+		total.add(other.total.sum());
+		sum.add(other.sum.sum());
+		long current;
+		long otherMax = other.max.get();
+		while (otherMax > (current = max.get()) && !max.compareAndSet(current, otherMax)) {
+		}
+	}
+
+	// values up to 63 are their own bucket; above, the bucket is given by the highest bit and the
+	// SUB_BUCKET_BITS below it
+	private static int bucketOf(long value) {
+		int shift = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+		return shift * SUB_BUCKETS + (int) (value >>> shift);
+	}
+
+	// the largest value that falls in the bucket
+	private static long highestValueIn(int bucket) {
+		int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+		long sub = bucket - shift * SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+
+	public long count() {
+		return total.sum();
+	}
+
+	public long max() {
+		return max.get();
+	}
+
+	public double mean() {
+		long count = total.sum();
+		return count == 0 ? 0 : (double) sum.sum() / count;
+	}
+
+	// the latency, in nanos, that the given percentage of the samples doesn't exceed, e.g. 99.9;
+	// 0 if there are none
+	public long percentile(double percent) {
+		if (percent < 0 || percent > 100) throw new IllegalArgumentException("Not a percentage: " + percent);
+		long count = total.sum();
+		if (count == 0) return 0;
+		long rank = Math.max(1, (long) Math.ceil(percent / 100 * count));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += counts.get(i);
+			if (seen >= rank) return Math.min(highestValueIn(i), max.get());
+		}
+		return max.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("count=%d, mean=%.1f us, p50=%.1f us, p99=%.1f us, p999=%.1f us, max=%.1f us",
+				count(), mean() / 1000, micros(percentile(50)), micros(percentile(99)), micros(percentile(99.9)), micros(max()));
+	}
+
+	private static double micros(long nanos) {
+		return (double) nanos / TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+}
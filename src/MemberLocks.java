@@ -0,0 +1,132 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class MemberLocks {
+
+	/*
+	 * Striped locks keyed by member id, for operations that change several accounts at once.
+	 *
+	 * A member id maps to one of a fixed number of stripes. An operation locks the stripes of all
+	 * the members it changes, always in ascending stripe order, so two operations can never wait
+	 * for each other in a cycle; operations on members in different stripes run in parallel.
+	 *
+	 * Every stripe counts how often it was acquired, how often it was already held by another
+	 * thread (a contention), and how long threads waited for it.
+	 */
+
+	private final ReentrantLock[] stripes;
+	private final int mask;
+	private final AtomicLongArray acquisitions;
+	private final AtomicLongArray contentions;
+	private final AtomicLongArray waitNanos;
+
+	// the locked stripes of one operation: close to unlock them
+	public class Held implements AutoCloseable {
+		private final int[] locked;
+
+		private Held(int[] locked) {
+			this.locked = locked;
+		}
+
+		@Override
+		public void close() {
+			for (int i = locked.length - 1; i >= 0; i--) {
+				stripes[locked[i]].unlock();
+			}
+		}
+	}
+
+	// the number of stripes is rounded up to a power of two
+	public MemberLocks(int stripeCount) {
+		if (stripeCount <= 0) throw new IllegalArgumentException("Stripe count must be positive: " + stripeCount);
+		int count = Integer.highestOneBit(stripeCount);
+		if (count < stripeCount) count <<= 1;
+		stripes = new ReentrantLock[count];
+		for (int i = 0; i < count; i++) {
+			stripes[i] = new ReentrantLock();
+		}
+		mask = count - 1;
+		acquisitions = new AtomicLongArray(count);
+		contentions = new AtomicLongArray(count);
+		waitNanos = new AtomicLongArray(count);
+	}
+
+	public int stripeCount() {
+		return stripes.length;
+	}
+
+	public int stripeOf(int memberId) {
+		return IntIntCounter.mix(memberId) & mask;
+	}
+
+	// locks the stripes of all the given members; ids may repeat or share a stripe
+	public Held lock(int... memberIds) {
+		int[] order = new int[memberIds.length];
+		for (int i = 0; i < memberIds.length; i++) {
+			order[i] = stripeOf(memberIds[i]);
+		}
+		Arrays.sort(order);
+		int distinct = 0;
+		for (int i = 0; i < order.length; i++) {
+			if (i == 0 || order[i] != order[i - 1]) order[distinct++] = order[i];
+		}
+		int[] locked = Arrays.copyOf(order, distinct);
+		for (int i = 0; i < locked.length; i++) {
+			acquire(locked[i]);
+		}
+		return new Held(locked);
+	}
+
+	private void acquire(int stripe) {
+		ReentrantLock lock = stripes[stripe];
+		acquisitions.incrementAndGet(stripe);
+		if (lock.tryLock()) return;
+		contentions.incrementAndGet(stripe);
+		long start = System.nanoTime();
+		lock.lock();
+		waitNanos.addAndGet(stripe, System.nanoTime() - start);
+	}
+
+	public long acquisitions(int stripe) {
+		return acquisitions.get(stripe);
+	}
+
+	public long contentions(int stripe) {
+		return contentions.get(stripe);
+	}
+
+	public long waitNanos(int stripe) {
+		return waitNanos.get(stripe);
+	}
+
+	public long totalContentions() {
+		long total = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			total += contentions.get(i);
+		}
+		return total;
+	}
+
+	// the stripe with the most contentions, a hint for hot members
+	public int hottestStripe() {
+		int hottest = 0;
+		for (int i = 1; i < stripes.length; i++) {
+			if (contentions.get(i) > contentions.get(hottest)) hottest = i;
+		}
+		return hottest;
+	}
+
+	@Override
+	public String toString() {
+		long total = 0;
+		for (int i = 0; i < stripes.length; i++) {
+			total += acquisitions.get(i);
+		}
+		int hottest = hottestStripe();
+		return String.format("MemberLocks[stripes=%d, acquisitions=%d, contentions=%d, hottest=%d (%d contentions, %.3f ms waited)]",
+				stripes.length, total, totalContentions(), hottest, contentions(hottest), waitNanos(hottest) / 1e6);
+	}
+
+}
@@ -0,0 +1,33 @@
+import java.util.Collections;
+import java.util.List;
+
+
+public class MemberPage {
+	
+	/*
+	 * One page of member user names, in user name order, as returned by ISocialNetwork.listMembers(cursor, pageSize).
+	 * The next cursor is the last user name on the page; it stays valid while members join and leave.
+	 */
+	
+	private final List<String> members;
+	private final String nextCursor;
+	
+	public MemberPage(List<String> members, String nextCursor) {
+		this.members = Collections.unmodifiableList(members);
+		this.nextCursor = nextCursor;
+	}
+	
+	public List<String> getMembers() {
+		return members;
+	}
+	
+	// cursor for the following page, or null if this is the last page
+	public String getNextCursor() {
+		return nextCursor;
+	}
+	
+	public boolean hasNext() {
+		return nextCursor != null;
+	}
+
+}
@@ -0,0 +1,88 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+
+public class ReadBuffer<E> {
+
+	/*
+	 * Reads recorded for a policy that is only updated under a lock, such as the eviction policy of
+	 * CachingAccountDAO: a reader that finds the lock taken leaves its read here, and the next holder
+	 * of the lock replays it, instead of the read being lost.
+	 *
+	 * Threads are spread by id over striped ring buffers of BUFFER_SIZE reads each. A reader claims
+	 * a slot with one compare-and-set on its stripe's write counter and never waits; only the holder
+	 * of the lock drains. Like any lossy buffer, a stripe that is full, or whose slot another reader
+	 * claimed first, drops the read, so recording costs the same however contended the lock is.
+	 */
+
+	private static final int BUFFER_SIZE = 16;
+	// counters of neighbouring stripes a cache line apart, so their readers don't share one
+	private static final int PADDING = 8;
+
+	private final int mask;
+	private final AtomicReferenceArray<E> slots;
+	// reads claimed and reads drained, per stripe; the drained counts are only written by the drainer
+	private final AtomicLongArray writes;
+	private final AtomicLongArray reads;
+	private final AtomicLong dropped = new AtomicLong();
+
+	// as many stripes as processors, rounded up to a power of two
+	public ReadBuffer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	public ReadBuffer(int stripes) {
+		int count = Integer.highestOneBit(Math.max(stripes, 1) * 2 - 1);
+		mask = count - 1;
+		slots = new AtomicReferenceArray<E>(count * BUFFER_SIZE);
+		writes = new AtomicLongArray(count * PADDING);
+		reads = new AtomicLongArray(count * PADDING);
+	}
+
+	private int stripe() {
+		return IntIntCounter.mix((int) Thread.currentThread().getId()) & mask;
+	}
+
+	// records a read; false if it was dropped
+	public boolean offer(E element) {
+		int stripe = stripe();
+		int counter = stripe * PADDING;
+		long tail = writes.get(counter);
+		if (tail - reads.get(counter) >= BUFFER_SIZE || !writes.compareAndSet(counter, tail, tail + 1)) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		slots.lazySet(stripe * BUFFER_SIZE + (int) (tail & (BUFFER_SIZE - 1)), element);
+		return true;
+	}
+
+	// hands every recorded read to the consumer, stripe by stripe in the order they were recorded, and
+	// returns how many; for the holder of the policy's lock only. A slot claimed but not yet filled
+	// ends its stripe's drain, and is drained the next time
+	public int drainTo(Consumer<? super E> consumer) {
+		int drained = 0;
+		for (int stripe = 0; stripe <= mask; stripe++) {
+			int counter = stripe * PADDING;
+			long head = reads.get(counter);
+			long tail = writes.get(counter);
+			for (; head < tail; head++) {
+				int slot = stripe * BUFFER_SIZE + (int) (head & (BUFFER_SIZE - 1));
+				E element = slots.get(slot);
+				if (element == null) break;
+				slots.lazySet(slot, null);
+				consumer.accept(element);
+				drained++;
+			}
+			reads.lazySet(counter, head);
+		}
+		return drained;
+	}
+
+	// reads dropped because their stripe was full or contended
+	public long droppedCount() {
+		return dropped.get();
+	}
+
+}
@@ -0,0 +1,66 @@
+import java.util.Spliterator;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+
+public class ReadingSpliterator<K, T> implements Spliterator<T> {
+
+	/*
+	 * A Spliterator over the accounts of a store, read one by one from a Spliterator over their keys.
+	 *
+	 * Splitting splits the keys, so each part reads its own partition of the store. A key whose
+	 * account reads as null, because it was deleted after the key was reached, is skipped; the size
+	 * is therefore only an estimate.
+	 */
+
+	private final Spliterator<K> keys;
+	private final Function<? super K, ? extends T> read;
+	// the account read by the last key advanced over; null if it was gone
+	private T next;
+	private final Consumer<K> reader;
+
+	public ReadingSpliterator(Spliterator<K> keys, Function<? super K, ? extends T> read) {
+		this.keys = keys;
+		this.read = read;
+		this.reader = key -> next = read.apply(key);
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super T> action) {
+		while (keys.tryAdvance(reader)) {
+			T found = next;
+			next = null;
+			if (found != null) {
+				action.accept(found);
+				return true;
+			}
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super T> action) {
+		keys.forEachRemaining(key -> {
+			T found = read.apply(key);
+			if (found != null) action.accept(found);
+		});
+	}
+
+	@Override
+	public Spliterator<T> trySplit() {
+		Spliterator<K> prefix = keys.trySplit();
+		return prefix == null ? null : new ReadingSpliterator<K, T>(prefix, read);
+	}
+
+	@Override
+	public long estimateSize() {
+		return keys.estimateSize();
+	}
+
+	// the keys' order and concurrency carry over; their size doesn't, as gone accounts are skipped
+	@Override
+	public int characteristics() {
+		return keys.characteristics() & (ORDERED | CONCURRENT | IMMUTABLE) | NONNULL;
+	}
+
+}
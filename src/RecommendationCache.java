@@ -0,0 +1,207 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+public class RecommendationCache {
+	
+	/*
+	 * Per-member cache of friend recommendations, bounded by member count with LRU eviction.
+	 * 
+	 * Recommendations depend on the friends of a member and on the friends of those friends, 
+	 * so when a friendship between two members changes, the entries of both members and of all 
+	 * their friends are invalidated; blocking only invalidates the blocker. The SocialNetwork 
+	 * that owns the cache reports these changes; changes made through other SocialNetwork 
+	 * objects over the same DAO are not seen.
+	 * 
+	 * A result computed while the member's entry was invalidated is not cached, so a slow computation 
+	 * can't store recommendations that are already out of date. Invalidations are stamped per stripe 
+	 * of user names, so a change elsewhere in the network doesn't throw away a computation.
+	 * 
+	 * The cache is shared by all sessions of its SocialNetwork, so it is split into segments by 
+	 * user name, each with its own lock and its own share of the capacity; members in different 
+	 * segments never wait for each other.
+	 */
+	
+	private static class Entry {
+		Set<String> recommendations;
+		// top-k list and the k it was computed for: a shorter list than k is complete
+		List<FriendRecommendation> ranked;
+		int rankedFor;
+	}
+	
+	private static final int SEGMENTS = 16;
+	private static final int STAMP_STRIPES = 1024;
+	
+	// one LRU segment; its monitor guards it
+	private static class Segment extends LinkedHashMap<String, Entry> {
+		private static final long serialVersionUID = 1L;
+		private final int capacity;
+		
+		Segment(int capacity) {
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+			return size() > capacity;
+		}
+		
+		Entry entryOf(String userName) {
+			Entry entry = get(userName);
+			if (entry == null) {
+				entry = new Entry();
+				put(userName, entry);
+			}
+			return entry;
+		}
+	}
+	
+	private final Segment[] segments = new Segment[SEGMENTS];
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong invalidations = new AtomicLong();
+	// invalidations of the user names in each stripe
+	private final AtomicLongArray stamps = new AtomicLongArray(STAMP_STRIPES);
+	
+	public RecommendationCache(int capacity) {
+		int segmentCapacity = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+		for (int i = 0; i < SEGMENTS; i++) {
+			segments[i] = new Segment(segmentCapacity);
+		}
+	}
+	
+	private Segment segmentOf(String userName) {
+		return segments[IntIntCounter.mix(userName.hashCode()) & (SEGMENTS - 1)];
+	}
+	
+	private static int stripeOf(String userName) {
+		return IntIntCounter.mix(userName.hashCode()) & (STAMP_STRIPES - 1);
+	}
+	
+	// returns a copy of the cached recommendations, or null on a miss
+	public Set<String> getRecommendations(String userName) {
+		Set<String> recommendations = null;
+		Segment segment = segmentOf(userName);
+		synchronized (segment) {
+			Entry entry = segment.get(userName);
+			if (entry != null) recommendations = entry.recommendations;
+		}
+		if (recommendations == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new HashSet<String>(recommendations);
+	}
+	
+	// returns the cached top k, or null on a miss
+	public List<FriendRecommendation> getRanked(String userName, int k) {
+		List<FriendRecommendation> ranked = null;
+		Segment segment = segmentOf(userName);
+		synchronized (segment) {
+			Entry entry = segment.get(userName);
+			if (entry != null && entry.ranked != null 
+					&& (k <= entry.rankedFor || entry.ranked.size() < entry.rankedFor)) {
+				ranked = entry.ranked;
+			}
+		}
+		if (ranked == null) {
+			misses.incrementAndGet();
+			return null;
+		}
+		hits.incrementAndGet();
+		return new ArrayList<FriendRecommendation>(ranked.subList(0, Math.min(k, ranked.size())));
+	}
+	
+	// take a stamp of the member before computing their recommendations, and pass it when caching the result
+	public long stamp(String userName) {
+		return stamps.get(stripeOf(userName));
+	}
+	
+	// the stamp is checked under the segment lock, and invalidations stamp before they remove, 
+	// so an entry is either rejected here or removed by the invalidation
+	
+	public void putRecommendations(String userName, long stamp, Set<String> recommendations) {
+		Set<String> copy = Collections.unmodifiableSet(new HashSet<String>(recommendations));
+		Segment segment = segmentOf(userName);
+		synchronized (segment) {
+			if (stamp != stamps.get(stripeOf(userName))) return;
+			segment.entryOf(userName).recommendations = copy;
+		}
+	}
+	
+	public void putRanked(String userName, long stamp, int k, List<FriendRecommendation> ranked) {
+		List<FriendRecommendation> copy = Collections.unmodifiableList(new ArrayList<FriendRecommendation>(ranked));
+		Segment segment = segmentOf(userName);
+		synchronized (segment) {
+			if (stamp != stamps.get(stripeOf(userName))) return;
+			Entry entry = segment.entryOf(userName);
+			entry.ranked = copy;
+			entry.rankedFor = k;
+		}
+	}
+	
+	public void invalidate(String userName) {
+		invalidations.incrementAndGet();
+		stamps.incrementAndGet(stripeOf(userName));
+		Segment segment = segmentOf(userName);
+		synchronized (segment) {
+			segment.remove(userName);
+		}
+	}
+	
+	public void invalidateAll(Collection<String> userNames) {
+		invalidations.incrementAndGet();
+		for (String each : userNames) {
+			stamps.incrementAndGet(stripeOf(each));
+			Segment segment = segmentOf(each);
+			synchronized (segment) {
+				segment.remove(each);
+			}
+		}
+	}
+	
+	public int size() {
+		int size = 0;
+		for (Segment each : segments) {
+			synchronized (each) {
+				size += each.size();
+			}
+		}
+		return size;
+	}
+	
+	public long hitCount() {
+		return hits.get();
+	}
+	
+	public long missCount() {
+		return misses.get();
+	}
+	
+	public long invalidationCount() {
+		return invalidations.get();
+	}
+	
+	public double hitRatio() {
+		long hits = hitCount();
+		long requests = hits + missCount();
+		return requests == 0 ? 0.0 : (double) hits / requests;
+	}
+	
+	@Override
+	public String toString() {
+		return String.format("RecommendationCache[size=%d, hits=%d, misses=%d, invalidations=%d, hitRatio=%.3f]",
+				size(), hitCount(), missCount(), invalidationCount(), hitRatio());
+	}
+
+}
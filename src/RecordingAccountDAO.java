@@ -0,0 +1,298 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+
+
+public class RecordingAccountDAO extends ForwardingAccountDAO {
+
+	/*
+	 * Records every call to another IAccountDAO as an AccountDAOEvent for Java Flight Recorder: the
+	 * method, its duration, how many accounts it passed or returned, and whether it threw.
+	 *
+	 * Each call asks a new event whether it is enabled before anything else; while no recording has
+	 * the event on, that is a constant false once compiled, the event doesn't escape and isn't
+	 * allocated, and the call goes straight to the wrapped DAO.
+	 */
+
+	public RecordingAccountDAO(IAccountDAO delegate) {
+		super(delegate);
+	}
+
+	private static void commit(AccountDAOEvent event, String method) {
+		event.method = method;
+		event.commit();
+	}
+
+	private static int sizeOf(Collection<?> accounts) {
+		return accounts == null ? 0 : accounts.size();
+	}
+
+	/*
+	 * Recorded calls
+	 */
+
+	@Override
+	public void save(Account member) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.save(member);
+			return;
+		}
+		event.begin();
+		try {
+			delegate.save(member);
+			event.accounts = 1;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "save");
+		}
+	}
+
+	@Override
+	public void saveAll(Collection<Account> members) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.saveAll(members);
+			return;
+		}
+		event.begin();
+		try {
+			event.accounts = sizeOf(members);
+			delegate.saveAll(members);
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "saveAll");
+		}
+	}
+
+	@Override
+	public Account findByUserName(String userName) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.findByUserName(userName);
+		event.begin();
+		try {
+			Account member = delegate.findByUserName(userName);
+			event.accounts = member == null ? 0 : 1;
+			return member;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "findByUserName");
+		}
+	}
+
+	@Override
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.findAllByUserNames(userNames);
+		event.begin();
+		try {
+			Map<String, Account> members = delegate.findAllByUserNames(userNames);
+			event.accounts = members.size();
+			return members;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "findAllByUserNames");
+		}
+	}
+
+	@Override
+	public void update(Account member) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.update(member);
+			return;
+		}
+		event.begin();
+		try {
+			delegate.update(member);
+			event.accounts = 1;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "update");
+		}
+	}
+
+	@Override
+	public void updateAll(Collection<Account> members) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.updateAll(members);
+			return;
+		}
+		event.begin();
+		try {
+			event.accounts = sizeOf(members);
+			delegate.updateAll(members);
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "updateAll");
+		}
+	}
+
+	@Override
+	public void delete(Account member) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.delete(member);
+			return;
+		}
+		event.begin();
+		try {
+			delegate.delete(member);
+			event.accounts = 1;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "delete");
+		}
+	}
+
+	@Override
+	public void deleteAll(Collection<Account> members) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.deleteAll(members);
+			return;
+		}
+		event.begin();
+		try {
+			event.accounts = sizeOf(members);
+			delegate.deleteAll(members);
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "deleteAll");
+		}
+	}
+
+	@Override
+	public Set<Account> findAll() {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.findAll();
+		event.begin();
+		try {
+			Set<Account> members = delegate.findAll();
+			event.accounts = members.size();
+			return members;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "findAll");
+		}
+	}
+
+	@Override
+	public Set<String> findAllUserNames() {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.findAllUserNames();
+		event.begin();
+		try {
+			Set<String> userNames = delegate.findAllUserNames();
+			event.accounts = userNames.size();
+			return userNames;
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "findAllUserNames");
+		}
+	}
+
+	// records getting the iterator, as for the spliterators below; the scans themselves are lazy
+	@Override
+	public Iterator<String> scanUserNames(String afterUserName) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.scanUserNames(afterUserName);
+		event.begin();
+		try {
+			return delegate.scanUserNames(afterUserName);
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "scanUserNames");
+		}
+	}
+
+	@Override
+	public Spliterator<String> splitUserNames() {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.splitUserNames();
+		event.begin();
+		try {
+			return delegate.splitUserNames();
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "splitUserNames");
+		}
+	}
+
+	@Override
+	public Spliterator<Account> splitAccounts() {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.splitAccounts();
+		event.begin();
+		try {
+			return delegate.splitAccounts();
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "splitAccounts");
+		}
+	}
+
+	@Override
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) return delegate.compareAndCommit(updates, deletes);
+		event.begin();
+		try {
+			event.accounts = sizeOf(updates) + sizeOf(deletes);
+			return delegate.compareAndCommit(updates, deletes);
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "compareAndCommit");
+		}
+	}
+
+	@Override
+	public void flush() {
+		AccountDAOEvent event = new AccountDAOEvent();
+		if (!event.isEnabled()) {
+			delegate.flush();
+			return;
+		}
+		event.begin();
+		try {
+			delegate.flush();
+		} catch (RuntimeException e) {
+			event.failed = true;
+			throw e;
+		} finally {
+			commit(event, "flush");
+		}
+	}
+
+}
@@ -0,0 +1,13 @@
+public class RoundTripBudgetExceededException extends RuntimeException {
+	
+	/**
+	 * Thrown when a social network operation made more DAO reads or writes than its budget allows, 
+	 * see RoundTripTracker
+	 */
+	private static final long serialVersionUID = 00001L;
+
+	public RoundTripBudgetExceededException(String message) {
+		super(message);
+	}
+
+}
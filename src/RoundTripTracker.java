@@ -0,0 +1,286 @@
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+
+public class RoundTripTracker extends ForwardingAccountDAO {
+
+	/*
+	 * Attributes the calls to another IAccountDAO to the social network operation that made them,
+	 * to catch operations whose round trips grow with the data, like a read per friend.
+	 *
+	 * SocialNetwork and Session open a Scope around every operation, named after it; the scope lives
+	 * in a thread local, and an operation that runs another (leave logs out) counts as one. Every call
+	 * through this DAO in a scope counts as a read or a write of it, and once the scope closes its
+	 * counts go into the operation's distributions. flush() is a durability point, not a round trip of
+	 * the operation, and isn't counted; neither are calls outside any scope.
+	 *
+	 * An operation can be given a budget of reads and writes. Operations over budget are counted, and
+	 * if failing is on, throw a RoundTripBudgetExceededException when they end, so a test that runs
+	 * the operations can catch a fan-out regression.
+	 *
+	 * The scope is also where an operation is recorded for Java Flight Recorder: while SocialNetworkEvent
+	 * is enabled, it holds one, which the operation tells its member and result size, and commits it with
+	 * the counts when the operation ends.
+	 */
+
+	// the operation running on a thread; reused, as a thread runs one operation at a time
+	public static class Scope implements AutoCloseable {
+		private String operation;
+		private int depth;
+		private int reads;
+		private int writes;
+		// the tracker that counted calls of this operation
+		private RoundTripTracker tracker;
+		// the operation's Flight Recorder event; null unless the event is enabled
+		private SocialNetworkEvent event;
+
+		// the member running the operation, and their fan-out; returns the member
+		public Account member(Account me) {
+			if (event != null && depth == 1 && me != null) {
+				event.userName = me.getUserName();
+				event.friends = me.getFriends().size();
+				event.incomingRequests = me.getIncomingRequests().size();
+			}
+			return me;
+		}
+
+		// the number of members or recommendations the operation returns
+		public void resultSize(int size) {
+			if (event != null && depth == 1) event.resultSize = size;
+		}
+
+		@Override
+		public void close() {
+			if (--depth > 0) return;
+			if (event != null) {
+				SocialNetworkEvent recorded = event;
+				event = null;
+				recorded.reads = reads;
+				recorded.writes = writes;
+				recorded.commit();
+			}
+			if (tracker == null) return;
+			RoundTripTracker counted = tracker;
+			tracker = null;
+			counted.operationEnded(operation, reads, writes);
+		}
+	}
+
+	// the round trips of one operation
+	public static class OperationStats {
+		private final LongAdder runs = new LongAdder();
+		private final LongAdder overBudget = new LongAdder();
+		// distributions of the counts per run; exact up to 63
+		private final LatencyHistogram reads = new LatencyHistogram();
+		private final LatencyHistogram writes = new LatencyHistogram();
+
+		public long runs() {
+			return runs.sum();
+		}
+
+		public long overBudget() {
+			return overBudget.sum();
+		}
+
+		public LatencyHistogram reads() {
+			return reads;
+		}
+
+		public LatencyHistogram writes() {
+			return writes;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("runs=%d, reads p50/p99/max=%d/%d/%d, writes p50/p99/max=%d/%d/%d, overBudget=%d", runs(),
+					reads.percentile(50), reads.percentile(99), reads.max(), writes.percentile(50), writes.percentile(99), writes.max(),
+					overBudget());
+		}
+	}
+
+	private static final ThreadLocal<Scope> current = ThreadLocal.withInitial(Scope::new);
+
+	private final Map<String, OperationStats> stats = new ConcurrentHashMap<String, OperationStats>();
+	// the most reads and writes an operation may make: {reads, writes}
+	private final Map<String, int[]> budgets = new ConcurrentHashMap<String, int[]>();
+	private volatile boolean failOverBudget = false;
+
+	public RoundTripTracker(IAccountDAO delegate) {
+		super(delegate);
+	}
+
+	// starts the named operation on this thread, or joins the one running; close the scope when it ends
+	public static Scope begin(String operation) {
+		Scope scope = current.get();
+		if (scope.depth++ == 0) {
+			scope.operation = operation;
+			scope.reads = 0;
+			scope.writes = 0;
+			SocialNetworkEvent event = new SocialNetworkEvent();
+			if (event.isEnabled()) {
+				event.operation = operation;
+				event.begin();
+				scope.event = event;
+			}
+		}
+		return scope;
+	}
+
+	public RoundTripTracker setBudget(String operation, int maxReads, int maxWrites) {
+		budgets.put(operation, new int[] { maxReads, maxWrites });
+		return this;
+	}
+
+	// whether operations over budget throw RoundTripBudgetExceededException when they end
+	public RoundTripTracker setFailOverBudget(boolean fail) {
+		failOverBudget = fail;
+		return this;
+	}
+
+	// the round trips of the operation; empty if it never ran a call through this DAO
+	public OperationStats stats(String operation) {
+		OperationStats operationStats = stats.get(operation);
+		return operationStats == null ? new OperationStats() : operationStats;
+	}
+
+	public void reset() {
+		stats.clear();
+	}
+
+	private void read() {
+		Scope scope = current.get();
+		if (scope.depth == 0) return;
+		scope.tracker = this;
+		scope.reads++;
+	}
+
+	private void write() {
+		Scope scope = current.get();
+		if (scope.depth == 0) return;
+		scope.tracker = this;
+		scope.writes++;
+	}
+
+	private void operationEnded(String operation, int reads, int writes) {
+		OperationStats operationStats = stats.computeIfAbsent(operation, name -> new OperationStats());
+		operationStats.runs.increment();
+		operationStats.reads.record(reads);
+		operationStats.writes.record(writes);
+		int[] budget = budgets.get(operation);
+		if (budget == null || (reads <= budget[0] && writes <= budget[1])) return;
+		operationStats.overBudget.increment();
+		if (failOverBudget) {
+			throw new RoundTripBudgetExceededException(String.format("%s made %d reads and %d writes, its budget is %d and %d",
+					operation, reads, writes, budget[0], budget[1]));
+		}
+	}
+
+	// one line per operation, in name order
+	public String dump() {
+		StringBuilder dump = new StringBuilder();
+		for (Map.Entry<String, OperationStats> each : new TreeMap<String, OperationStats>(stats).entrySet()) {
+			dump.append(String.format("%-28s %s%n", each.getKey(), each.getValue()));
+		}
+		return dump.toString();
+	}
+
+	@Override
+	public String toString() {
+		return dump();
+	}
+
+	/*
+	 * Counted calls
+	 */
+
+	@Override
+	public void save(Account member) {
+		write();
+		delegate.save(member);
+	}
+
+	@Override
+	public void saveAll(Collection<Account> members) {
+		write();
+		delegate.saveAll(members);
+	}
+
+	@Override
+	public Account findByUserName(String userName) {
+		read();
+		return delegate.findByUserName(userName);
+	}
+
+	@Override
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		read();
+		return delegate.findAllByUserNames(userNames);
+	}
+
+	@Override
+	public void update(Account member) {
+		write();
+		delegate.update(member);
+	}
+
+	@Override
+	public void updateAll(Collection<Account> members) {
+		write();
+		delegate.updateAll(members);
+	}
+
+	@Override
+	public void delete(Account member) {
+		write();
+		delegate.delete(member);
+	}
+
+	@Override
+	public void deleteAll(Collection<Account> members) {
+		write();
+		delegate.deleteAll(members);
+	}
+
+	@Override
+	public Set<Account> findAll() {
+		read();
+		return delegate.findAll();
+	}
+
+	@Override
+	public Set<String> findAllUserNames() {
+		read();
+		return delegate.findAllUserNames();
+	}
+
+	@Override
+	public Iterator<String> scanUserNames(String afterUserName) {
+		read();
+		return delegate.scanUserNames(afterUserName);
+	}
+
+	@Override
+	public Spliterator<String> splitUserNames() {
+		read();
+		return delegate.splitUserNames();
+	}
+
+	@Override
+	public Spliterator<Account> splitAccounts() {
+		read();
+		return delegate.splitAccounts();
+	}
+
+	@Override
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		write();
+		return delegate.compareAndCommit(updates, deletes);
+	}
+
+}
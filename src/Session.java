@@ -0,0 +1,177 @@
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+
+public class Session implements AutoCloseable {
+
+	/*
+	 * A member logged in to a SocialNetwork, as returned by ISocialNetwork.openSession.
+	 *
+	 * Any number of sessions, for the same or for different members, can be open on one
+	 * SocialNetwork at the same time and be used from different threads; the operations are
+	 * those of ISocialNetwork for the logged-in user. Every operation starts from the member's
+	 * stored account, so a session sees the changes other sessions made.
+	 * Once the session is closed, or the member has left, operations throw NoUserLoggedInException.
+	 */
+
+	private final SocialNetwork network;
+	private final String userName;
+	private volatile boolean open = true;
+
+	Session(SocialNetwork network, String userName) {
+		this.network = network;
+		this.userName = userName;
+	}
+
+	public String getUserName() {
+		return userName;
+	}
+
+	public boolean isOpen() {
+		return open;
+	}
+
+	// log out; like SocialNetwork.logout, this is a durability point
+	@Override
+	public void close() {
+		if (!open) return;
+		open = false;
+		network.flush();
+	}
+
+	// returns an up-to-date handle to the member's account
+	public Account getAccount() throws NoUserLoggedInException {
+		return me();
+	}
+
+	private Account me() throws NoUserLoggedInException {
+		if (!open) throw new NoUserLoggedInException();
+		Account me = network.reload(userName);
+		if (me == null) {
+			open = false;
+			throw new NoUserLoggedInException();
+		}
+		return me;
+	}
+
+	public Set<String> listMembers() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("listMembers")) {
+			Set<String> members = network.listMembers(scope.member(me()));
+			scope.resultSize(members.size());
+			return members;
+		}
+	}
+
+	public MemberPage listMembers(String cursor, int pageSize) throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("listMembers(page)")) {
+			MemberPage page = network.listMembers(scope.member(me()), cursor, pageSize);
+			scope.resultSize(page.getMembers().size());
+			return page;
+		}
+	}
+
+	public Stream<String> streamMembers() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("streamMembers")) {
+			return network.streamMembers(scope.member(me()));
+		}
+	}
+
+	public boolean hasMember(String userName) throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("hasMember")) {
+			return network.hasMember(scope.member(me()), userName);
+		}
+	}
+
+	public void sendFriendshipTo(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("sendFriendshipTo")) {
+			network.sendFriendshipTo(scope.member(me()), userName);
+		}
+	}
+
+	public void block(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("block")) {
+			network.block(scope.member(me()), userName);
+		}
+	}
+
+	public void unblock(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("unblock")) {
+			network.unblock(scope.member(me()), userName);
+		}
+	}
+
+	public void sendFriendshipCancellationTo(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("sendFriendshipCancellationTo")) {
+			network.sendFriendshipCancellationTo(scope.member(me()), userName);
+		}
+	}
+
+	public void acceptFriendshipFrom(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("acceptFriendshipFrom")) {
+			network.acceptFriendshipFrom(scope.member(me()), userName);
+		}
+	}
+
+	public void rejectFriendshipFrom(String userName) throws UserNotFoundException, NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("rejectFriendshipFrom")) {
+			network.rejectFriendshipFrom(scope.member(me()), userName);
+		}
+	}
+
+	public void autoAcceptFriendships() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("autoAcceptFriendships")) {
+			network.autoAcceptFriendships(scope.member(me()));
+		}
+	}
+
+	public void cancelAutoAcceptFriendships() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("cancelAutoAcceptFriendships")) {
+			network.cancelAutoAcceptFriendships(scope.member(me()));
+		}
+	}
+
+	public void acceptAllFriendships() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("acceptAllFriendships")) {
+			network.acceptAllFriendships(scope.member(me()));
+		}
+	}
+
+	public void rejectAllFriendships() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("rejectAllFriendships")) {
+			network.rejectAllFriendships(scope.member(me()));
+		}
+	}
+
+	// the account read here may be outdated by the time the recommendations are computed; the network 
+	// reads it again after stamping its cache, so what it caches is never older than the stamp
+	public Set<String> recommendFriends() throws NoUserLoggedInException, UserNotFoundException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("recommendFriends")) {
+			Set<String> recommendations = network.recommendFriends(scope.member(me()));
+			scope.resultSize(recommendations.size());
+			return recommendations;
+		}
+	}
+
+	public List<FriendRecommendation> recommendFriends(int k) throws NoUserLoggedInException, UserNotFoundException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("recommendFriends(k)")) {
+			List<FriendRecommendation> recommendations = network.recommendFriends(scope.member(me()), k);
+			scope.resultSize(recommendations.size());
+			return recommendations;
+		}
+	}
+
+	// leave the social network; closes the session
+	public void leave() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("leave")) {
+			network.leave(scope.member(me()));
+			close();
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "Session[" + userName + (open ? "" : ", closed") + "]";
+	}
+
+}
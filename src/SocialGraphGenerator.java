@@ -0,0 +1,288 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+
+public class SocialGraphGenerator {
+
+	/*
+	 * Generates social networks whose friendships follow a power law, for load tests and benchmarks.
+	 *
+	 * Friendships are grown with the Barabási–Albert model: the network starts as a small clique, and
+	 * every member that joins befriends friendsPerMember members already there, each picked with a
+	 * probability proportional to the number of friends it has. A few members end up with thousands of
+	 * friends and most with a handful, as in real networks. On top of that, members send friendship
+	 * requests that stay pending and block members, to a configurable average count each, between
+	 * members that aren't related yet.
+	 *
+	 * The same seed generates the same network. It can be populated through ISocialNetwork, one
+	 * operation at a time as members would, or written straight into an IAccountDAO in batches, which
+	 * is the way to get millions of members; a SocialNetwork must then be created over the DAO after
+	 * it is populated.
+	 */
+
+	private static final int SAVE_BATCH = 10000;
+
+	// the relations of every member in compressed sparse row form: the related members of member i are
+	// targets[offsets[i]] .. targets[offsets[i + 1] - 1], sorted
+	private static class Adjacency {
+		final int[] offsets;
+		final int[] targets;
+
+		// from pairs of members: from[k] is related to to[k]
+		Adjacency(int members, int[] from, int[] to, int pairs) {
+			offsets = new int[members + 1];
+			for (int k = 0; k < pairs; k++) {
+				offsets[from[k] + 1]++;
+			}
+			for (int i = 0; i < members; i++) {
+				offsets[i + 1] += offsets[i];
+			}
+			targets = new int[pairs];
+			int[] next = Arrays.copyOf(offsets, members);
+			for (int k = 0; k < pairs; k++) {
+				targets[next[from[k]]++] = to[k];
+			}
+			for (int i = 0; i < members; i++) {
+				Arrays.sort(targets, offsets[i], offsets[i + 1]);
+			}
+		}
+
+		boolean contains(int member, int other) {
+			return Arrays.binarySearch(targets, offsets[member], offsets[member + 1], other) >= 0;
+		}
+
+		int degree(int member) {
+			return offsets[member + 1] - offsets[member];
+		}
+	}
+
+	private final int members;
+	private final int friendsPerMember;
+	private final long seed;
+	private double requestsPerMember = 0;
+	private double blocksPerMember = 0;
+	private String userNamePrefix = "Member";
+	private String[] userNames;
+	private Adjacency friends;
+	private Adjacency outgoingRequests;
+	private Adjacency incomingRequests;
+	private Adjacency blocked;
+	private Adjacency blockedBy;
+
+	public SocialGraphGenerator(int members, int friendsPerMember, long seed) {
+		if (friendsPerMember < 1) throw new IllegalArgumentException("Members need one friend at least: " + friendsPerMember);
+		if (members <= friendsPerMember) throw new IllegalArgumentException("Too few members for " + friendsPerMember + " friends each: " + members);
+		this.members = members;
+		this.friendsPerMember = friendsPerMember;
+		this.seed = seed;
+	}
+
+	// the average number of pending friendship requests each member sends
+	public SocialGraphGenerator setRequestsPerMember(double requests) {
+		requestsPerMember = requests;
+		userNames = null;
+		return this;
+	}
+
+	// the average number of members each member blocks
+	public SocialGraphGenerator setBlocksPerMember(double blocks) {
+		blocksPerMember = blocks;
+		userNames = null;
+		return this;
+	}
+
+	// user names are the prefix followed by the member's number
+	public SocialGraphGenerator setUserNamePrefix(String prefix) {
+		userNamePrefix = prefix;
+		userNames = null;
+		return this;
+	}
+
+	public List<String> userNames() {
+		generate();
+		return Collections.unmodifiableList(Arrays.asList(userNames));
+	}
+
+	// the number of friends of each member, by member number
+	public int[] degrees() {
+		generate();
+		int[] degrees = new int[members];
+		for (int i = 0; i < members; i++) {
+			degrees[i] = friends.degree(i);
+		}
+		return degrees;
+	}
+
+	/*
+	 * Generating
+	 */
+
+	private void generate() {
+		if (userNames != null) return;
+		Random random = new Random(seed);
+		String[] names = new String[members];
+		String format = "%s%0" + String.valueOf(members - 1).length() + "d";
+		for (int i = 0; i < members; i++) {
+			names[i] = String.format(format, userNamePrefix, i);
+		}
+		generateFriendships(random);
+		generateRelations(random);
+		userNames = names;
+	}
+
+	private void generateFriendships(Random random) {
+		int clique = friendsPerMember + 1;
+		long pairs = (long) clique * (clique - 1) + 2L * (members - clique) * friendsPerMember;
+		if (pairs > Integer.MAX_VALUE) throw new IllegalArgumentException("Too many friendships: " + pairs / 2);
+		int[] from = new int[(int) pairs];
+		int[] to = new int[(int) pairs];
+		// every friendship appears twice, once per member, so picking a pair at random picks a member
+		// in proportion to its number of friends
+		int count = 0;
+		for (int i = 0; i < clique; i++) {
+			for (int j = 0; j < clique; j++) {
+				if (i == j) continue;
+				from[count] = i;
+				to[count++] = j;
+			}
+		}
+		int[] picked = new int[friendsPerMember];
+		for (int member = clique; member < members; member++) {
+			int existing = count;
+			for (int k = 0; k < friendsPerMember; k++) {
+				int friend;
+				do {
+					friend = from[random.nextInt(existing)];
+				} while (contains(picked, k, friend));
+				picked[k] = friend;
+			}
+			for (int friend : picked) {
+				from[count] = member;
+				to[count++] = friend;
+				from[count] = friend;
+				to[count++] = member;
+			}
+		}
+		friends = new Adjacency(members, from, to, count);
+	}
+
+	private static boolean contains(int[] values, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (values[i] == value) return true;
+		}
+		return false;
+	}
+
+	// pending requests, then blocks, each between members that aren't related yet
+	private void generateRelations(Random random) {
+		long requestPairs = Math.round(requestsPerMember * members);
+		long blockPairs = Math.round(blocksPerMember * members);
+		// each pair of members is related once at most, so the pairs picked at random must not run out
+		long unrelated = (long) members * (members - 1) / 2 - friends.targets.length / 2;
+		if (requestPairs < 0 || blockPairs < 0) throw new IllegalArgumentException("Requests and blocks can't be negative: " + requestPairs + ", " + blockPairs);
+		if (requestPairs + blockPairs > Math.min(unrelated, Integer.MAX_VALUE)) {
+			throw new IllegalArgumentException("Too many requests and blocks for " + unrelated + " unrelated pairs of members: " + (requestPairs + blockPairs));
+		}
+		int requests = (int) requestPairs;
+		int blocks = (int) blockPairs;
+		int[] from = new int[requests + blocks];
+		int[] to = new int[requests + blocks];
+		Set<Long> related = new HashSet<Long>();
+		int count = 0;
+		while (count < requests + blocks) {
+			int member = random.nextInt(members);
+			int other = random.nextInt(members);
+			if (member == other || friends.contains(member, other)) continue;
+			long pair = (long) Math.min(member, other) * members + Math.max(member, other);
+			if (!related.add(pair)) continue;
+			from[count] = member;
+			to[count++] = other;
+		}
+		outgoingRequests = new Adjacency(members, from, to, requests);
+		incomingRequests = new Adjacency(members, to, from, requests);
+		int[] blockers = Arrays.copyOfRange(from, requests, count);
+		int[] blockees = Arrays.copyOfRange(to, requests, count);
+		blocked = new Adjacency(members, blockers, blockees, blocks);
+		blockedBy = new Adjacency(members, blockees, blockers, blocks);
+	}
+
+	/*
+	 * Populating
+	 */
+
+	// joins every member and creates the relations with the operations members would use
+	public void populate(ISocialNetwork network) throws UserExistsException, UserNotFoundException, NoUserLoggedInException {
+		generate();
+		for (String each : userNames) {
+			network.join(each);
+		}
+		// requests from the member with the lower number, accepted by the other
+		for (int member = 0; member < members; member++) {
+			Session session = network.openSession(handle(member));
+			for (int k = friends.offsets[member]; k < friends.offsets[member + 1]; k++) {
+				if (friends.targets[k] > member) session.sendFriendshipTo(userNames[friends.targets[k]]);
+			}
+			session.close();
+		}
+		for (int member = 0; member < members; member++) {
+			Session session = network.openSession(handle(member));
+			session.acceptAllFriendships();
+			session.close();
+		}
+		// blocks last, as blocked members can't send requests to those who block them
+		for (int member = 0; member < members; member++) {
+			if (outgoingRequests.degree(member) == 0 && blocked.degree(member) == 0) continue;
+			Session session = network.openSession(handle(member));
+			for (int k = outgoingRequests.offsets[member]; k < outgoingRequests.offsets[member + 1]; k++) {
+				session.sendFriendshipTo(userNames[outgoingRequests.targets[k]]);
+			}
+			session.close();
+		}
+		for (int member = 0; member < members; member++) {
+			if (blocked.degree(member) == 0) continue;
+			Session session = network.openSession(handle(member));
+			for (int k = blocked.offsets[member]; k < blocked.offsets[member + 1]; k++) {
+				session.block(userNames[blocked.targets[k]]);
+			}
+			session.close();
+		}
+	}
+
+	// saves the accounts of all members, relations included, in batches
+	public void populate(IAccountDAO accountDAO) {
+		generate();
+		List<Account> batch = new ArrayList<Account>(SAVE_BATCH);
+		for (int member = 0; member < members; member++) {
+			Account account = handle(member);
+			addAll(account.getFriends(), friends, member);
+			addAll(account.getOutgoingRequests(), outgoingRequests, member);
+			addAll(account.getIncomingRequests(), incomingRequests, member);
+			addAll(account.blockedMembers(), blocked, member);
+			addAll(account.blockedByMembers(), blockedBy, member);
+			batch.add(account);
+			if (batch.size() == SAVE_BATCH) {
+				accountDAO.saveAll(batch);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty()) accountDAO.saveAll(batch);
+	}
+
+	private void addAll(Set<String> userNames, Adjacency relation, int member) {
+		for (int k = relation.offsets[member]; k < relation.offsets[member + 1]; k++) {
+			userNames.add(this.userNames[relation.targets[k]]);
+		}
+	}
+
+	private Account handle(int member) {
+		Account account = new Account();
+		account.setUserName(userNames[member]);
+		return account;
+	}
+
+}
@@ -1,15 +1,64 @@
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.HashSet;
-import java.util.Objects;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 
 
+// the member locks and round trip scopes are held for their try blocks, which needn't refer to them
+@SuppressWarnings("try")
 public class SocialNetwork implements ISocialNetwork {
 	
-	private Account currentUser = null;
+	/*
+	 * The operations for logged-in members are implemented once, against the member's account;
+	 * the ISocialNetwork methods run them for the single current user, and Session objects run 
+	 * them for any number of members logged in at the same time, from any threads. 
+	 * Apart from the current user, all state of a SocialNetwork is safe to share between threads.
+	 * 
+	 * Operations that change several accounts hold the member locks of all of them, and re-read the 
+	 * accounts once they hold the locks, so concurrent operations can't leave one-sided relations behind.
+	 * 
+	 * Every operation reads and changes its accounts through a UnitOfWork, which writes the changed ones 
+	 * in one compare-and-commit of the versions that were read, and rolls them all back if the operation 
+	 * fails. A writer that doesn't take these locks, like another SocialNetwork over the same DAO, can't be 
+	 * overwritten blindly: the losing operation reads again and retries, with bounded exponential backoff 
+	 * outside the locks.
+	 * 
+	 * Every ISocialNetwork method, and every Session method, runs in a RoundTripTracker scope named 
+	 * after it, so a tracker under the network can tell which operation made which DAO calls. The 
+	 * operations tell the scope their member and result size, for the Flight Recorder event it records.
+	 */
+	
+	private volatile Account currentUser = null;
 	//private IAccountDAO accountDAO = DAOFactory.getInstance().getAccountDAO();
 	private IAccountDAO accountDAO = null;
+	private static final UserNameDictionary names = UserNameDictionary.getInstance();
+	// optional read-optimized friendship graph; only used while no friendship has changed since it was built
+	private volatile FriendshipGraph friendshipGraph = null;
+	private final RecommendationCache recommendationCache = new RecommendationCache(10000);
+	private final MemberLocks memberLocks = new MemberLocks(1024);
+	private static final int MAX_ATTEMPTS = 10;
+	private static final long BACKOFF_NANOS = 50000;
+	// whether full scans run in parallel, over the partitions of the store
+	private volatile boolean parallelScans = false;
 
 	public SocialNetwork() {
 		this.accountDAO = DAOFactory.getInstance().getAccountDAO();
@@ -19,6 +68,88 @@ public class SocialNetwork implements ISocialNetwork {
 		this.accountDAO = stubbedDAO;
 	}
 
+	// recommendFriends reads friendships from the graph instead of the DAO, until this network changes a friendship
+	void useFriendshipGraph(FriendshipGraph graph) {
+		friendshipGraph = graph;
+	}
+	
+	// listMembers scans the store on every core, through IAccountDAO.splitUserNames; pays off on large networks
+	void setParallelScans(boolean parallel) {
+		parallelScans = parallel;
+	}
+	
+	RecommendationCache recommendationCache() {
+		return recommendationCache;
+	}
+	
+	MemberLocks memberLocks() {
+		return memberLocks;
+	}
+	
+	private MemberLocks.Held lock(Account me, String userName) {
+		return memberLocks.lock(me.memberId(), names.lookup(userName));
+	}
+	
+	// with the locks of both members held: brings the member's account up to date, 
+	// and reads the other member in the same round trip
+	private Account refreshWith(UnitOfWork work, Account me, String userName) throws UserNotFoundException {
+		if (userName == null) throw new UserNotFoundException(userName);
+		work.findAll(Arrays.asList(me.getUserName(), userName));
+		if (!work.attach(me)) throw new UserNotFoundException(me.getUserName());
+		return work.find(userName);
+	}
+	
+	// locks the member and the related members, and reads them all in one round trip, bringing the member's 
+	// account up to date; locks again if the related members changed before the locks were taken
+	private MemberLocks.Held lockRelated(UnitOfWork work, Account me, Function<Account, Set<String>> relatedOf) {
+		Set<String> related = relatedOf.apply(me);
+		while (true) {
+			Set<String> reading = new HashSet<String>(related);
+			reading.add(me.getUserName());
+			int[] ids = new int[reading.size()];
+			int i = 0;
+			for (String each : reading) {
+				ids[i++] = names.lookup(each);
+			}
+			MemberLocks.Held held = memberLocks.lock(ids);
+			work.findAll(reading);
+			work.attach(me);
+			Set<String> current = relatedOf.apply(me);
+			if (related.containsAll(current)) return held;
+			held.close();
+			work.clear();
+			related = current;
+		}
+	}
+	
+	// one attempt at an optimistic change: false if another writer changed one of its accounts first
+	private interface Attempt<E extends Exception> {
+		boolean run() throws E;
+	}
+	
+	// runs the change until it commits, waiting a random time up to an exponentially growing, capped bound 
+	// between attempts, and gives up after MAX_ATTEMPTS conflicts
+	private static <E extends Exception> void retry(Attempt<E> attempt) throws E {
+		for (int attempts = 1; !attempt.run(); attempts++) {
+			if (attempts == MAX_ATTEMPTS) {
+				throw new ConcurrentModificationException("Gave up after " + attempts + " conflicting writes");
+			}
+			long bound = BACKOFF_NANOS << Math.min(attempts, 10);
+			LockSupport.parkNanos(ThreadLocalRandom.current().nextLong(bound) + 1);
+		}
+	}
+	
+	// a friendship between the two members was made or broken: the graph is out of date, and so are 
+	// the recommendations of both members and of their friends
+	private void friendshipChanged(Account member, Account other) {
+		friendshipGraph = null;
+		Set<String> affected = new HashSet<String>(member.getFriends());
+		affected.addAll(other.getFriends());
+		affected.add(member.getUserName());
+		affected.add(other.getUserName());
+		recommendationCache.invalidateAll(affected);
+	}
+
 	private class MyAccount extends Account {
 		
 		public MyAccount(String userName) {
@@ -27,182 +158,548 @@ public class SocialNetwork implements ISocialNetwork {
 	}
 
 	public Account join(String userName) throws UserExistsException {
-		Account member = new MyAccount(userName);
-		Account existingMember = accountDAO.findByUserName(userName);
-		if (existingMember != null) throw new UserExistsException(userName);
-		accountDAO.save(member);
-		return member;
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("join")) {
+			Account member = new MyAccount(userName);
+			try (MemberLocks.Held held = memberLocks.lock(member.memberId())) {
+				Account existingMember = accountDAO.findByUserName(userName);
+				if (existingMember != null) throw new UserExistsException(userName);
+				accountDAO.save(member);
+			}
+			return scope.member(member);
+		}
 	}
 	
 	public Account login(Account me) throws UserNotFoundException {
-		// find the user in the DB and return an Account record for user
-		if (me == null) throw new UserNotFoundException("Null");
-		Account member = accountDAO.findByUserName(me.getUserName());
-		if (member == null) throw new UserNotFoundException(me.getUserName());
-		currentUser = member; 
-		return member;
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("login")) {
+			// find the user in the DB and return an Account record for user
+			if (me == null) throw new UserNotFoundException("Null");
+			Account member = accountDAO.findByUserName(me.getUserName());
+			if (member == null) throw new UserNotFoundException(me.getUserName());
+			currentUser = member; 
+			return scope.member(member);
+		}
 	}
 
 	public void logout() {
-		currentUser = null;
-		
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("logout")) {
+			currentUser = null;
+			// a durability point: what the member did is persisted once they're logged out
+			flush();
+		}
+	}
+	
+	public Session openSession(Account me) throws UserNotFoundException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("openSession")) {
+			if (me == null) throw new UserNotFoundException("Null");
+			Account member = accountDAO.findByUserName(me.getUserName());
+			if (member == null) throw new UserNotFoundException(me.getUserName());
+			return new Session(this, scope.member(member).getUserName());
+		}
+	}
+	
+	// the up-to-date account of a member with an open session, or null if the member left
+	Account reload(String userName) {
+		return accountDAO.findByUserName(userName);
+	}
+	
+	void flush() {
+		accountDAO.flush();
+	}
+	
+	private Account loggedIn() throws NoUserLoggedInException {
+		Account me = currentUser;
+		if (me == null) throw new NoUserLoggedInException();
+		return me;
 	}
 	
 	public Set<String> listMembers() throws NoUserLoggedInException{
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Set<Account> members = accountDAO.findAll();
-		Set<String> userNames = new HashSet<String>();
-		for (Account each : members) {
-			if (!each.blockedMembers().contains(currentUser.getUserName())) {
-				userNames.add(each.getUserName());
-			}
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("listMembers")) {
+			Set<String> members = listMembers(scope.member(loggedIn()));
+			scope.resultSize(members.size());
+			return members;
 		}
+	}
+	
+	Set<String> listMembers(Account me) {
+		// everybody, except the members who block the logged-in user 
+		if (parallelScans) return listMembersInParallel(me);
+		Set<String> userNames = accountDAO.findAllUserNames();
+		userNames.removeAll(blockersOf(me));
 		return userNames;	
 	}
 
+	// every partition adds its members straight into one presized concurrent set, where threads only meet 
+	// on the same bin, instead of filling a set of its own to be merged up the fork-join tree
+	private Set<String> listMembersInParallel(Account me) {
+		Set<String> blockers = blockersOf(me);
+		Spliterator<String> userNames = accountDAO.splitUserNames();
+		Set<String> members = ConcurrentHashMap.newKeySet((int) Math.min(userNames.estimateSize(), 1 << 30));
+		StreamSupport.stream(userNames, true).filter(each -> !blockers.contains(each)).forEach(members::add);
+		return members;
+	}
+
+	public MemberPage listMembers(String cursor, int pageSize) throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("listMembers(page)")) {
+			MemberPage page = listMembers(scope.member(loggedIn()), cursor, pageSize);
+			scope.resultSize(page.getMembers().size());
+			return page;
+		}
+	}
+	
+	MemberPage listMembers(Account me, String cursor, int pageSize) {
+		if (pageSize <= 0) throw new IllegalArgumentException("Page size must be positive: " + pageSize);
+		Set<String> blockers = blockersOf(me);
+		List<String> page = new ArrayList<String>(pageSize);
+		Iterator<String> userNames = accountDAO.scanUserNames(cursor);
+		while (page.size() < pageSize && userNames.hasNext()) {
+			String each = userNames.next();
+			if (!blockers.contains(each)) page.add(each);
+		}
+		String nextCursor = page.size() == pageSize && userNames.hasNext() ? page.get(pageSize - 1) : null;
+		return new MemberPage(page, nextCursor);
+	}
+	
+	public Stream<String> streamMembers() throws NoUserLoggedInException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("streamMembers")) {
+			return streamMembers(scope.member(loggedIn()));
+		}
+	}
+	
+	Stream<String> streamMembers(Account me) {
+		final Set<String> blockers = blockersOf(me);
+		Iterator<String> userNames = accountDAO.scanUserNames(null);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(userNames, 
+				Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false)
+				.filter(each -> !blockers.contains(each));
+	}
+	
+	// members who block the given member, read from the stored account
+	private Set<String> blockersOf(Account me) {
+		Account stored = accountDAO.findByUserName(me.getUserName());
+		if (stored == null) stored = me;
+		return new HashSet<String>(stored.blockedByMembers());
+	}
+
 	public boolean hasMember(String userName) throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("hasMember")) {
+			return hasMember(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	boolean hasMember(Account me, String userName) {
 		Account member = accountDAO.findByUserName(userName);
 		if (member == null) {
 			return false;
 		}
-		if (member.blockedMembers().contains(currentUser.getUserName())) {
-			return false;
-		}
-		return true;
+		return isVisible(me, member);
+	}
+	
+	// members are invisible to the members they block
+	private boolean isVisible(Account me, Account member) {
+		return !member.blockedMembers().contains(me.getUserName());
 	}
 	
 	public void sendFriendshipTo(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account toMember = accountDAO.findByUserName(userName);
-		if (toMember == null) throw new UserNotFoundException(userName);
-		toMember.requestFriendship(currentUser);
-		accountDAO.update(currentUser); 
-		accountDAO.update(toMember); 
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("sendFriendshipTo")) {
+			sendFriendshipTo(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void sendFriendshipTo(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account toMember = refreshWith(work, me, userName);
+				if (toMember == null || !isVisible(me, toMember)) throw new UserNotFoundException(userName);
+				toMember.requestFriendship(me);
+				if (!work.commit()) return false;
+				if (toMember.autoAccepts()) friendshipChanged(toMember, me);
+				return true;
+			}
+		});
 	}
 
 	public void leave() throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		for (String each : currentUser.getFriends()) {
-			Account friend = accountDAO.findByUserName(each);
-			friend.cancelFriendship(currentUser);
-			accountDAO.update(friend);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("leave")) {
+			leave(scope.member(loggedIn()));
+			logout();
+		}
+	}
+	
+	void leave(Account me) {
+		retry(() -> {
+			// fetch every related member in one round trip
+			try (UnitOfWork work = new UnitOfWork(accountDAO); 
+					MemberLocks.Held held = lockRelated(work, me, SocialNetwork::relatedMembers)) {
+				return work.find(me.getUserName()) == null || leaveLocked(work, me);
+			}
+		});
+	}
+	
+	private static Set<String> relatedMembers(Account member) {
+		Set<String> related = new HashSet<String>(member.getFriends());
+		related.addAll(member.getIncomingRequests());
+		related.addAll(member.getOutgoingRequests());
+		related.addAll(member.blockedMembers());
+		related.addAll(member.blockedByMembers());
+		return related;
+	}
+	
+	private boolean leaveLocked(UnitOfWork work, Account me) {
+		// every account changed below is written once, in one batch
+		List<Account> friends = new ArrayList<Account>();
+		// cancelling a friendship changes both accounts, so walk a copy of the friends
+		for (String each : new ArrayList<String>(me.getFriends())) {
+			Account friend = work.find(each);
+			if (friend == null) continue;
+			friend.cancelFriendship(me);
+			friends.add(friend);
 		}
-		for (String each : currentUser.getIncomingRequests()) {
-			Account friend = accountDAO.findByUserName(each);
-			friend.getOutgoingRequests().remove(currentUser.getUserName());
-			accountDAO.update(friend);
+		for (String each : me.getIncomingRequests()) {
+			Account friend = work.find(each);
+			if (friend == null) continue;
+			friend.getOutgoingRequests().remove(me.getUserName());
 		}
-		for (String each : currentUser.getOutgoingRequests()) {
-			Account friend = accountDAO.findByUserName(each);
-			friend.getIncomingRequests().remove(currentUser.getUserName());
-			accountDAO.update(friend);
+		for (String each : me.getOutgoingRequests()) {
+			Account friend = work.find(each);
+			if (friend == null) continue;
+			friend.getIncomingRequests().remove(me.getUserName());
 		}
-		accountDAO.update(currentUser);
-		accountDAO.delete(currentUser);
-		currentUser = null;
+		// keep the blocked sets and their reverse index free of the leaving member
+		for (String each : me.blockedMembers()) {
+			Account member = work.find(each);
+			if (member == null) continue;
+			member.blockedByMembers().remove(me.getUserName());
+		}
+		for (String each : me.blockedByMembers()) {
+			Account member = work.find(each);
+			if (member == null) continue;
+			member.blockedMembers().remove(me.getUserName());
+		}
+		work.remove(me);
+		if (!work.commit()) return false;
+		for (Account each : friends) {
+			friendshipChanged(each, me);
+		}
+		recommendationCache.invalidate(me.getUserName());
+		return true;
 	}
 	
 	public void sendFriendshipCancellationTo(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account member = accountDAO.findByUserName(userName);
-		if (member == null) throw new UserNotFoundException(userName);
-		member.cancelFriendship(currentUser);
-		accountDAO.update(member);
-		accountDAO.update(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("sendFriendshipCancellationTo")) {
+			sendFriendshipCancellationTo(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void sendFriendshipCancellationTo(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account member = refreshWith(work, me, userName);
+				if (member == null) throw new UserNotFoundException(userName);
+				member.cancelFriendship(me);
+				if (!work.commit()) return false;
+				friendshipChanged(member, me);
+				return true;
+			}
+		});
 	}
 	
 	public void acceptFriendshipFrom(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account member = accountDAO.findByUserName(userName);
-		if (member == null) throw new UserNotFoundException(userName);
-		member.friendshipAccepted(currentUser);
-		accountDAO.update(member);
-		accountDAO.update(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("acceptFriendshipFrom")) {
+			acceptFriendshipFrom(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void acceptFriendshipFrom(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account member = refreshWith(work, me, userName);
+				if (member == null) throw new UserNotFoundException(userName);
+				member.friendshipAccepted(me);
+				if (!work.commit()) return false;
+				friendshipChanged(member, me);
+				return true;
+			}
+		});
 	}
 	
 	public void rejectFriendshipFrom(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account member = accountDAO.findByUserName(userName);
-		if (member == null) throw new UserNotFoundException(userName);
-		member.friendshipRejected(currentUser);
-		accountDAO.update(member);
-		accountDAO.update(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("rejectFriendshipFrom")) {
+			rejectFriendshipFrom(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void rejectFriendshipFrom(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account member = refreshWith(work, me, userName);
+				if (member == null) throw new UserNotFoundException(userName);
+				member.friendshipRejected(me);
+				return work.commit();
+			}
+		});
 	}
 
 	public void autoAcceptFriendships() throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		currentUser.autoAcceptFriendships();
-		accountDAO.update(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("autoAcceptFriendships")) {
+			autoAcceptFriendships(scope.member(loggedIn()));
+		}
+	}
+	
+	// a change of the member's own account needs no member lock: the version check is enough
+	void autoAcceptFriendships(Account me) {
+		retry(() -> {
+			try (UnitOfWork work = new UnitOfWork(accountDAO)) {
+				if (!work.attach(me)) return true;
+				me.autoAcceptFriendships();
+				return work.commit();
+			}
+		});
 	}
 	
 	public void cancelAutoAcceptFriendships() throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		currentUser.cancelAutoAcceptFriendships();
-		accountDAO.update(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("cancelAutoAcceptFriendships")) {
+			cancelAutoAcceptFriendships(scope.member(loggedIn()));
+		}
 	}
+	
+	void cancelAutoAcceptFriendships(Account me) {
+		retry(() -> {
+			try (UnitOfWork work = new UnitOfWork(accountDAO)) {
+				if (!work.attach(me)) return true;
+				me.cancelAutoAcceptFriendships();
+				return work.commit();
+			}
+		});
+	}
+	
 
 	public void block(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account member = accountDAO.findByUserName(userName); 
-		if (member == null) throw new UserNotFoundException(userName);
-		currentUser.block(member);
-		accountDAO.update(currentUser);
-		accountDAO.update(member);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("block")) {
+			block(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void block(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account member = refreshWith(work, me, userName);
+				if (member == null) throw new UserNotFoundException(userName);
+				me.block(member);
+				if (!work.commit()) return false;
+				recommendationCache.invalidate(me.getUserName());
+				return true;
+			}
+		});
 	}
 	
 	public void unblock(String userName) throws UserNotFoundException, NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		Account member = accountDAO.findByUserName(userName);
-		if (member == null) throw new UserNotFoundException(userName);
-		accountDAO.update(currentUser);	
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("unblock")) {
+			unblock(scope.member(loggedIn()), userName);
+		}
+	}
+	
+	void unblock(Account me, String userName) throws UserNotFoundException {
+		retry(() -> {
+			try (MemberLocks.Held held = lock(me, userName); UnitOfWork work = new UnitOfWork(accountDAO)) {
+				Account member = refreshWith(work, me, userName);
+				if (member == null) throw new UserNotFoundException(userName);
+				me.unblock(member);
+				if (!work.commit()) return false;
+				recommendationCache.invalidate(me.getUserName());
+				return true;
+			}
+		});
 	}
 	
 	public void rejectAllFriendships() throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		// must clone incomingRequests to avoid concurrentModificationException
-		Collection<String> incomingRequests = new HashSet<String>();
-		for (String each : currentUser.getIncomingRequests()) {
-			incomingRequests.add(new String(each));
-		}
-		for (String each : incomingRequests) {
-			accountDAO.findByUserName(each).friendshipRejected(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("rejectAllFriendships")) {
+			rejectAllFriendships(scope.member(loggedIn()));
 		}
 	}
 	
+	void rejectAllFriendships(Account me) {
+		retry(() -> {
+			try (UnitOfWork work = new UnitOfWork(accountDAO); 
+					MemberLocks.Held held = lockRelated(work, me, Account::getIncomingRequests)) {
+				if (work.find(me.getUserName()) == null) return true;
+				// must clone incomingRequests to avoid concurrentModificationException
+				Collection<String> incomingRequests = new HashSet<String>();
+				for (String each : me.getIncomingRequests()) {
+					incomingRequests.add(new String(each));
+				}
+				for (String each : incomingRequests) {
+					Account member = work.find(each);
+					if (member != null) member.friendshipRejected(me);
+				}
+				return work.commit();
+			}
+		});
+	}
+	
 	public void acceptAllFriendships() throws NoUserLoggedInException {
-		if (currentUser == null) throw new NoUserLoggedInException();
-		// must clone incomingRequests to avoid concurrentModificationException
-		Collection<String> incomingRequests = new HashSet<String>();
-		for (String each : currentUser.getIncomingRequests()) {
-			incomingRequests.add(each);
-		}
-		for (String each : incomingRequests) {
-			accountDAO.findByUserName(each).friendshipAccepted(currentUser);
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("acceptAllFriendships")) {
+			acceptAllFriendships(scope.member(loggedIn()));
 		}
-		accountDAO.update(currentUser);
+	}
+	
+	void acceptAllFriendships(Account me) {
+		retry(() -> {
+			try (UnitOfWork work = new UnitOfWork(accountDAO); 
+					MemberLocks.Held held = lockRelated(work, me, Account::getIncomingRequests)) {
+				if (work.find(me.getUserName()) == null) return true;
+				// must clone incomingRequests to avoid concurrentModificationException
+				Collection<String> incomingRequests = new HashSet<String>();
+				for (String each : me.getIncomingRequests()) {
+					incomingRequests.add(each);
+				}
+				List<Account> accepted = new ArrayList<Account>(incomingRequests.size());
+				for (String each : incomingRequests) {
+					Account member = work.find(each);
+					if (member == null) continue;
+					member.friendshipAccepted(me);
+					accepted.add(member);
+				}
+				if (!work.commit()) return false;
+				for (Account each : accepted) {
+					friendshipChanged(each, me);
+				}
+				return true;
+			}
+		});
 	}
 
 	public Set<String> recommendFriends() throws NoUserLoggedInException, UserNotFoundException {
-		if (currentUser == null) throw new NoUserLoggedInException();
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("recommendFriends")) {
+			Set<String> recommendations = recommendFriends(scope.member(loggedIn()));
+			scope.resultSize(recommendations.size());
+			return recommendations;
+		}
+	}
+	
+	Set<String> recommendFriends(Account me) throws UserNotFoundException {
+		Set<String> recommendations = recommendationCache.getRecommendations(me.getUserName());
+		if (recommendations == null) {
+			long stamp = recommendationCache.stamp(me.getUserName());
+			recommendations = computeRecommendations(reread(me));
+			recommendationCache.putRecommendations(me.getUserName(), stamp, recommendations);
+		}
+		return recommendations;
+	}
+	
+	// the member's account as stored after a cache stamp was taken: a change committed since the caller 
+	// read its copy is either in it or invalidates the stamp, so what is computed from it can be cached
+	private Account reread(Account me) throws UserNotFoundException {
+		Account current = accountDAO.findByUserName(me.getUserName());
+		if (current == null) throw new UserNotFoundException(me.getUserName());
+		return current;
+	}
+	
+	private Set<String> computeRecommendations(Account me) throws UserNotFoundException {
+		FriendshipGraph graph = friendshipGraph;
+		if (graph != null && graph.idOf(me.getUserName()) >= 0) {
+			return graph.recommendFriends(me.getUserName(), me.blockedMembers());
+		}
 		Set<String> recommendations = new HashSet<String>();
-		Set<String> seen = new HashSet<String>();
-		for (String each: currentUser.getFriends()) {
-			Account friend = accountDAO.findByUserName(each);
-			if (friend == null ) throw new UserNotFoundException(each);
-			for (String friendOfFriend: friend.getFriends()) {
-				if (seen.contains(friendOfFriend)) {
-					if (!currentUser.getFriends().contains(friendOfFriend)
-							&& !currentUser.blockedMembers().contains(friendOfFriend)
-							&& !Objects.equals(currentUser.getUserName(), friendOfFriend))
-						recommendations.add(friendOfFriend);
-				} 
-				else { // should we do something special about currentUser? 
-					seen.add(friendOfFriend);
-				}
+		IntIntCounter counts = countMutualFriends(me);
+		for (int slot = 0; slot < counts.capacity(); slot++) {
+			int candidate = counts.keyAt(slot);
+			if (candidate >= 0 && counts.countAt(slot) >= 2 && !isExcludedFromRecommendations(me, candidate)) {
+				recommendations.add(names.nameOf(candidate));
 			}
 		}
 		return recommendations;
 	}
+	
+	public List<FriendRecommendation> recommendFriends(int k) throws NoUserLoggedInException, UserNotFoundException {
+		try (RoundTripTracker.Scope scope = RoundTripTracker.begin("recommendFriends(k)")) {
+			List<FriendRecommendation> recommendations = recommendFriends(scope.member(loggedIn()), k);
+			scope.resultSize(recommendations.size());
+			return recommendations;
+		}
+	}
+	
+	List<FriendRecommendation> recommendFriends(Account me, int k) throws UserNotFoundException {
+		if (k <= 0) throw new IllegalArgumentException("k must be positive: " + k);
+		List<FriendRecommendation> ranked = recommendationCache.getRanked(me.getUserName(), k);
+		if (ranked == null) {
+			long stamp = recommendationCache.stamp(me.getUserName());
+			ranked = computeRankedRecommendations(reread(me), k);
+			recommendationCache.putRanked(me.getUserName(), stamp, k, ranked);
+		}
+		return ranked;
+	}
+	
+	private List<FriendRecommendation> computeRankedRecommendations(Account me, int k) throws UserNotFoundException {
+		final FriendshipGraph graph = friendshipGraph;
+		final int id = graph == null ? -1 : graph.idOf(me.getUserName());
+		if (id >= 0) {
+			final Set<String> blocked = me.blockedMembers();
+			return topRecommendations(graph.countMutualFriends(id), k, graph::userNameOf,
+					candidate -> candidate == id || graph.areFriends(id, candidate) 
+							|| blocked.contains(graph.userNameOf(candidate)));
+		}
+		return topRecommendations(countMutualFriends(me), k, names::nameOf, 
+				candidate -> isExcludedFromRecommendations(me, candidate));
+	}
+	
+	// counts, for every friend of a friend, how many of the member's friends they are friends with
+	private IntIntCounter countMutualFriends(Account member) throws UserNotFoundException {
+		Set<String> friendNames = member.getFriends();
+		Map<String, Account> friends = accountDAO.findAllByUserNames(friendNames);
+		long twoHop = 0;
+		for (String each : friendNames) {
+			Account friend = friends.get(each);
+			if (friend == null ) throw new UserNotFoundException(each);
+			twoHop += friend.friendIds().size();
+		}
+		IntIntCounter counts = new IntIntCounter((int) Math.min(twoHop, Integer.MAX_VALUE));
+		for (Account friend : friends.values()) {
+			for (IntHashSet.IntIterator each = friend.friendIds().iterator(); each.hasNext(); ) {
+				counts.increment(each.next());
+			}
+		}
+		return counts;
+	}
+	
+	// don't recommend the member, their friends, or members they blocked
+	private static boolean isExcludedFromRecommendations(Account me, int memberId) {
+		return memberId == me.memberId() 
+				|| me.friendIds().contains(memberId) 
+				|| me.blockedIds().contains(memberId);
+	}
+	
+	// keeps the k best candidates in a min-heap whose head is the worst one kept, 
+	// so a candidate costs a heap operation only when it makes it into the top k
+	private static List<FriendRecommendation> topRecommendations(IntIntCounter counts, int k, 
+			IntFunction<String> nameOf, IntPredicate excluded) {
+		PriorityQueue<FriendRecommendation> top = new PriorityQueue<FriendRecommendation>(Math.min(k, counts.size()) + 1, 
+				RANKING.reversed());
+		for (int slot = 0; slot < counts.capacity(); slot++) {
+			int candidate = counts.keyAt(slot);
+			if (candidate < 0 || excluded.test(candidate)) continue;
+			int count = counts.countAt(slot);
+			if (top.size() == k && count < top.peek().getMutualFriends()) continue;
+			FriendRecommendation recommendation = new FriendRecommendation(nameOf.apply(candidate), count);
+			if (top.size() < k) {
+				top.add(recommendation);
+			} else if (RANKING.compare(recommendation, top.peek()) < 0) {
+				top.poll();
+				top.add(recommendation);
+			}
+		}
+		List<FriendRecommendation> ranked = new ArrayList<FriendRecommendation>(top);
+		Collections.sort(ranked, RANKING);
+		return ranked;
+	}
+	
+	// most mutual friends first, then by user name
+	private static final Comparator<FriendRecommendation> RANKING = new Comparator<FriendRecommendation>() {
+		public int compare(FriendRecommendation a, FriendRecommendation b) {
+			if (a.getMutualFriends() != b.getMutualFriends()) {
+				return Integer.compare(b.getMutualFriends(), a.getMutualFriends());
+			}
+			return a.getUserName().compareTo(b.getUserName());
+		}
+	};
 
 }
@@ -0,0 +1,49 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+@Name("socialnetwork.Operation")
+@Label("Social Network Operation")
+@Category("Social Network")
+@Description("An ISocialNetwork or Session operation, with the member's fan-out and the DAO round trips it made")
+@StackTrace(false)
+public class SocialNetworkEvent extends jdk.jfr.Event {
+
+	/*
+	 * A Java Flight Recorder event per social network operation, so a slow recommendFriends or leave
+	 * in a recording can be put next to the degree of the member who ran it.
+	 *
+	 * The events are begun and committed by RoundTripTracker.Scope, which every operation opens. When
+	 * no recording has them enabled, isEnabled() is false and the scope doesn't fill or keep one.
+	 */
+
+	@Label("Operation")
+	String operation;
+
+	@Label("User Name")
+	String userName;
+
+	@Label("Friends")
+	@Description("Friends of the member when the operation started")
+	int friends;
+
+	@Label("Incoming Requests")
+	@Description("Friendship requests waiting for the member when the operation started")
+	int incomingRequests;
+
+	@Label("Result Size")
+	@Description("Members or recommendations returned; -1 if the operation returns none")
+	int resultSize = -1;
+
+	@Label("DAO Reads")
+	@Description("Reads counted by a RoundTripTracker under the network, 0 without one")
+	int reads;
+
+	@Label("DAO Writes")
+	@Description("Writes counted by a RoundTripTracker under the network, 0 without one")
+	int writes;
+
+}
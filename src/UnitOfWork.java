@@ -0,0 +1,139 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+
+public class UnitOfWork implements AutoCloseable {
+
+	/*
+	 * The accounts one SocialNetwork operation reads and changes, written together in one
+	 * compare-and-commit.
+	 *
+	 * Accounts are read through the unit, which hands out one copy per user name and keeps a
+	 * snapshot of it. A handle the caller already holds, such as the logged-in member's account,
+	 * can be attached in place of the copy read. commit() writes exactly the accounts that differ
+	 * from their snapshots, and deletes the removed ones, in one batch; the operation doesn't have
+	 * to keep track of what it changed.
+	 *
+	 * If the commit loses to another writer, or the operation fails before it commits, every
+	 * account goes back to its snapshot, so no caller is left holding a half-changed account:
+	 * closing a unit that didn't commit rolls it back.
+	 */
+
+	private final IAccountDAO accountDAO;
+	// user names read so far, with their accounts; members that don't exist map to null
+	private final Map<String, Account> accounts = new LinkedHashMap<String, Account>();
+	private final Map<String, Account> snapshots = new HashMap<String, Account>();
+	private final Set<String> removed = new LinkedHashSet<String>();
+	private List<Account> written = null;
+
+	public UnitOfWork(IAccountDAO accountDAO) {
+		this.accountDAO = accountDAO;
+	}
+
+	// the member's account, read once per unit; null if there is no such member
+	public Account find(String userName) {
+		if (!accounts.containsKey(userName)) track(userName, accountDAO.findByUserName(userName));
+		return accounts.get(userName);
+	}
+
+	// the accounts found, by user name, reading all that weren't read yet in one round trip
+	public Map<String, Account> findAll(Collection<String> userNames) {
+		List<String> unread = new ArrayList<String>();
+		for (String each : userNames) {
+			if (!accounts.containsKey(each)) unread.add(each);
+		}
+		if (!unread.isEmpty()) {
+			Map<String, Account> found = accountDAO.findAllByUserNames(unread);
+			for (String each : unread) {
+				track(each, found.get(each));
+			}
+		}
+		Map<String, Account> found = new HashMap<String, Account>();
+		for (String each : userNames) {
+			Account member = accounts.get(each);
+			if (member != null) found.put(each, member);
+		}
+		return found;
+	}
+
+	private void track(String userName, Account member) {
+		accounts.put(userName, member);
+		if (member != null) snapshots.put(userName, member.clone());
+	}
+
+	// brings a handle the caller keeps up to date with the account this unit read, and puts it in
+	// the account's place; false if the member doesn't exist
+	public boolean attach(Account handle) {
+		Account stored = find(handle.getUserName());
+		if (stored == null) return false;
+		handle.copyFrom(stored);
+		accounts.put(handle.getUserName(), handle);
+		return true;
+	}
+
+	// the account is deleted on commit
+	public void remove(Account member) {
+		removed.add(member.getUserName());
+	}
+
+	// forgets everything read so far, restoring attached handles first
+	public void clear() {
+		rollback();
+		accounts.clear();
+		snapshots.clear();
+		removed.clear();
+		written = null;
+	}
+
+	// writes the changed accounts and deletes the removed ones, atomically; if another writer
+	// changed one of the accounts since it was read, writes nothing, rolls back and returns false
+	public boolean commit() {
+		List<Account> updates = new ArrayList<Account>();
+		List<Account> deletes = new ArrayList<Account>();
+		for (Map.Entry<String, Account> each : accounts.entrySet()) {
+			Account member = each.getValue();
+			if (member == null) continue;
+			// a removed account is only deleted, whatever else changed in it
+			if (removed.contains(each.getKey())) {
+				deletes.add(member);
+			} else if (!member.equals(snapshots.get(each.getKey()))) {
+				updates.add(member);
+			}
+		}
+		if ((!updates.isEmpty() || !deletes.isEmpty()) && !accountDAO.compareAndCommit(updates, deletes)) {
+			rollback();
+			return false;
+		}
+		for (Account each : updates) {
+			snapshots.put(each.getUserName(), each.clone());
+		}
+		removed.clear();
+		written = updates;
+		return true;
+	}
+
+	// the accounts the commit wrote
+	public List<Account> written() {
+		return written == null ? Collections.<Account>emptyList() : Collections.unmodifiableList(written);
+	}
+
+	// puts every account back the way it was read
+	public void rollback() {
+		for (Map.Entry<String, Account> each : accounts.entrySet()) {
+			if (each.getValue() != null) each.getValue().copyFrom(snapshots.get(each.getKey()));
+		}
+	}
+
+	@Override
+	public void close() {
+		if (written == null) rollback();
+	}
+
+}
@@ -0,0 +1,63 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+public class UserNameDictionary {
+	
+	/*
+	 * Process-wide dictionary that encodes user names as dense int ids, so that accounts can 
+	 * store their relations as primitive int sets instead of sets of Strings.
+	 * An id is assigned the first time a name is encoded and is never reused; each name is 
+	 * kept once, no matter how many accounts refer to it.
+	 * Lookups are lock-free; only the assignment of new ids is synchronized.
+	 */
+	
+	private static UserNameDictionary instance = null;
+	
+	private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<String, Integer>();
+	// written before the id is published in ids, so any thread that knows an id can read its name 
+	private volatile String[] names = new String[1024];
+	private int size = 0;
+	
+	public static synchronized UserNameDictionary getInstance() {
+		// implementing a singleton
+		if (instance == null) {
+			instance = new UserNameDictionary();
+		}
+		return instance;
+	}
+	
+	// returns the id of a user name, assigning a new id if the name has not been seen yet
+	public int idOf(String userName) {
+		Integer id = ids.get(userName);
+		if (id != null) return id;
+		synchronized (this) {
+			id = ids.get(userName);
+			if (id != null) return id;
+			String[] current = names;
+			if (size == current.length) {
+				current = Arrays.copyOf(current, current.length * 2);
+			}
+			current[size] = userName;
+			names = current;
+			ids.put(userName, size);
+			return size++;
+		}
+	}
+	
+	// returns the id of a user name, or -1 if the name has never been encoded
+	public int lookup(String userName) {
+		if (userName == null) return -1;
+		Integer id = ids.get(userName);
+		return id == null ? -1 : id;
+	}
+	
+	public String nameOf(int id) {
+		return names[id];
+	}
+	
+	public int size() {
+		return ids.size();
+	}
+
+}
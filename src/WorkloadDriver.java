@@ -0,0 +1,250 @@
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+public class WorkloadDriver {
+
+	/*
+	 * Replays a mix of ISocialNetwork operations from several threads and measures their latencies.
+	 *
+	 * Every thread repeatedly picks an operation at random, in proportion to the weights of the mix,
+	 * and a member at random, opens a session of the member, runs the operation and closes the session;
+	 * the time of all three is recorded in the operation's LatencyHistogram. Members that joined during
+	 * the run are the only ones that leave, so the network it started with stays intact. Operations that
+	 * fail the way they may in a live network (a member left, or blocks the other) are counted as errors
+	 * and not timed; anything else stops the run.
+	 */
+
+	public enum Operation {
+		LOGIN, LIST_MEMBERS, SEND_FRIENDSHIP, ACCEPT_ALL_FRIENDSHIPS, REJECT_ALL_FRIENDSHIPS,
+		RECOMMEND_FRIENDS, BLOCK, UNBLOCK, JOIN, LEAVE
+	}
+
+	// what a run measured
+	public static class Report {
+		private final Map<Operation, LatencyHistogram> latencies;
+		private final long errors;
+		private final long elapsedNanos;
+
+		Report(Map<Operation, LatencyHistogram> latencies, long errors, long elapsedNanos) {
+			this.latencies = latencies;
+			this.errors = errors;
+			this.elapsedNanos = elapsedNanos;
+		}
+
+		// the latencies of one operation; empty if it didn't run
+		public LatencyHistogram latencies(Operation operation) {
+			LatencyHistogram histogram = latencies.get(operation);
+			return histogram == null ? new LatencyHistogram() : histogram;
+		}
+
+		// the latencies of all operations together
+		public LatencyHistogram latencies() {
+			LatencyHistogram all = new LatencyHistogram();
+			for (LatencyHistogram each : latencies.values()) {
+				all.add(each);
+			}
+			return all;
+		}
+
+		public long operationCount() {
+			return latencies().count();
+		}
+
+		public long errorCount() {
+			return errors;
+		}
+
+		// operations per second
+		public double throughput() {
+			return elapsedNanos == 0 ? 0 : operationCount() * 1e9 / elapsedNanos;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder report = new StringBuilder(String.format("%d operations in %.2f s, %.0f ops/s, %d errors%n",
+					operationCount(), elapsedNanos / 1e9, throughput(), errors));
+			for (Map.Entry<Operation, LatencyHistogram> each : latencies.entrySet()) {
+				report.append(String.format("  %-22s %s%n", each.getKey(), each.getValue()));
+			}
+			report.append(String.format("  %-22s %s%n", "ALL", latencies()));
+			return report.toString();
+		}
+	}
+
+	private final ISocialNetwork network;
+	private final List<String> members;
+	private final int threads;
+	private final Map<Operation, Integer> mix = new EnumMap<Operation, Integer>(Operation.class);
+	private long seed = 42;
+	private final AtomicLong joined = new AtomicLong();
+
+	// drives the network from the given number of threads, on behalf of the given members
+	public WorkloadDriver(ISocialNetwork network, List<String> members, int threads) {
+		if (members.isEmpty()) throw new IllegalArgumentException("No members to drive");
+		if (threads < 1) throw new IllegalArgumentException("Threads must be positive: " + threads);
+		this.network = network;
+		this.members = new ArrayList<String>(members);
+		this.threads = threads;
+		// mostly reads, like a social network
+		mix.put(Operation.LOGIN, 30);
+		mix.put(Operation.LIST_MEMBERS, 5);
+		mix.put(Operation.RECOMMEND_FRIENDS, 25);
+		mix.put(Operation.SEND_FRIENDSHIP, 15);
+		mix.put(Operation.ACCEPT_ALL_FRIENDSHIPS, 10);
+		mix.put(Operation.REJECT_ALL_FRIENDSHIPS, 2);
+		mix.put(Operation.BLOCK, 3);
+		mix.put(Operation.UNBLOCK, 3);
+		mix.put(Operation.JOIN, 4);
+		mix.put(Operation.LEAVE, 3);
+	}
+
+	// the relative frequency of the operation in the mix; 0 leaves it out
+	public WorkloadDriver setWeight(Operation operation, int weight) {
+		if (weight < 0) throw new IllegalArgumentException("Weights can't be negative: " + weight);
+		mix.put(operation, weight);
+		return this;
+	}
+
+	public WorkloadDriver setSeed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	// runs the mix for the given time
+	public Report run(long duration, TimeUnit unit) throws Exception {
+		long deadline = System.nanoTime() + unit.toNanos(duration);
+		return run(Long.MAX_VALUE, deadline);
+	}
+
+	// runs the given number of operations per thread
+	public Report run(long operationsPerThread) throws Exception {
+		return run(operationsPerThread, Long.MAX_VALUE);
+	}
+
+	private Report run(long operationsPerThread, long deadline) throws Exception {
+		List<Operation> operations = new ArrayList<Operation>();
+		List<Integer> weights = new ArrayList<Integer>();
+		int totalWeight = 0;
+		for (Map.Entry<Operation, Integer> each : mix.entrySet()) {
+			if (each.getValue() == 0) continue;
+			operations.add(each.getKey());
+			totalWeight += each.getValue();
+			weights.add(totalWeight);
+		}
+		if (totalWeight == 0) throw new IllegalStateException("The mix has no operations");
+		Map<Operation, LatencyHistogram> latencies = new EnumMap<Operation, LatencyHistogram>(Operation.class);
+		// leaves become joins while a thread has no member to leave, so every operation gets one
+		for (Operation each : Operation.values()) {
+			latencies.put(each, new LatencyHistogram());
+		}
+		AtomicLong errors = new AtomicLong();
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		List<Future<Void>> workers = new ArrayList<Future<Void>>();
+		long start = System.nanoTime();
+		try {
+			for (int t = 0; t < threads; t++) {
+				final Random random = new Random(seed + t);
+				final int total = totalWeight;
+				workers.add(pool.submit(new Callable<Void>() {
+					public Void call() throws Exception {
+						List<String> joinedHere = new ArrayList<String>();
+						for (long i = 0; i < operationsPerThread && System.nanoTime() < deadline; i++) {
+							int pick = random.nextInt(total);
+							int index = 0;
+							while (weights.get(index) <= pick) index++;
+							Operation operation = operations.get(index);
+							// only members this thread joined leave
+							if (operation == Operation.LEAVE && joinedHere.isEmpty()) operation = Operation.JOIN;
+							long began = System.nanoTime();
+							try {
+								perform(operation, random, joinedHere);
+							} catch (UserNotFoundException | NoUserLoggedInException e) {
+								errors.incrementAndGet();
+								continue;
+							}
+							latencies.get(operation).record(System.nanoTime() - began);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> each : workers) {
+				try {
+					each.get();
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Exception) throw (Exception) e.getCause();
+					throw e;
+				}
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		long elapsed = System.nanoTime() - start;
+		latencies.values().removeIf(histogram -> histogram.count() == 0);
+		return new Report(latencies, errors.get(), elapsed);
+	}
+
+	private void perform(Operation operation, Random random, List<String> joinedHere) throws Exception {
+		String userName = members.get(random.nextInt(members.size()));
+		if (operation == Operation.JOIN) {
+			String newMember = "Driver" + joined.incrementAndGet();
+			network.join(newMember);
+			joinedHere.add(newMember);
+			return;
+		}
+		if (operation == Operation.LEAVE) userName = joinedHere.remove(joinedHere.size() - 1);
+		if (operation == Operation.LOGIN) {
+			network.login(handle(userName));
+			return;
+		}
+		String other = members.get(random.nextInt(members.size()));
+		try (Session session = network.openSession(handle(userName))) {
+			switch (operation) {
+			case LIST_MEMBERS:
+				session.listMembers();
+				break;
+			case SEND_FRIENDSHIP:
+				if (!other.equals(userName)) session.sendFriendshipTo(other);
+				break;
+			case ACCEPT_ALL_FRIENDSHIPS:
+				session.acceptAllFriendships();
+				break;
+			case REJECT_ALL_FRIENDSHIPS:
+				session.rejectAllFriendships();
+				break;
+			case RECOMMEND_FRIENDS:
+				session.recommendFriends();
+				break;
+			case BLOCK:
+				if (!other.equals(userName)) session.block(other);
+				break;
+			case UNBLOCK:
+				if (!other.equals(userName)) session.unblock(other);
+				break;
+			case LEAVE:
+				session.leave();
+				break;
+			default:
+				throw new IllegalStateException("Unknown operation " + operation);
+			}
+		}
+	}
+
+	private static Account handle(String userName) {
+		Account member = new Account();
+		member.setUserName(userName);
+		return member;
+	}
+
+}
@@ -0,0 +1,487 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+
+public class WriteBehindAccountDAO extends ForwardingAccountDAO implements AutoCloseable {
+
+	/*
+	 * Buffers updates and deletes in memory and writes them to another IAccountDAO later, in batches.
+	 *
+	 * An account changed several times before it is written is written once, with its last state:
+	 * a friendship request, its acceptance and a block between two members cost two account writes
+	 * instead of six. A background thread flushes the buffer every flush interval, or as soon as it
+	 * holds the given number of accounts; flush() does it right away and is the durability point
+	 * (SocialNetwork calls it on logout).
+	 *
+	 * Reads see the buffered state, including what is being flushed; scans of all members lay the
+	 * buffer over what the wrapped DAO returns. The buffer hands out versions like a store would,
+	 * but the wrapped DAO only counts the writes that reach it, so for an account whose merged
+	 * writes skipped versions this layer keeps the difference and adds it to the versions it reads:
+	 * compare-and-commits keep working across flushes. This layer must be the only writer of the
+	 * wrapped DAO. Saves write the buffer out first. A flush writes the whole buffer in one
+	 * compare-and-commit, so it lands completely or not at all; one that fails keeps its accounts
+	 * buffered for the next one.
+	 */
+
+	// the last state of an account written to the buffer
+	private static class Entry {
+		final Account account;
+		final boolean deleted;
+
+		Entry(Account account, boolean deleted) {
+			this.account = account;
+			this.deleted = deleted;
+		}
+	}
+
+	// guarded by this, like the map being flushed
+	private Map<String, Entry> pending = new LinkedHashMap<String, Entry>();
+	private Map<String, Entry> flushing = Collections.emptyMap();
+	// what to add to the wrapped DAO's version of an account; written under this, along with the flush it comes from
+	private final Map<String, Long> versionOffsets = new ConcurrentHashMap<String, Long>();
+	// writes to the wrapped DAO that ended, or failed, so far: what was read from it is current while this doesn't move
+	private long delegateWrites;
+	// one flush at a time, so batches reach the wrapped DAO in order
+	private final ReentrantLock flushLock = new ReentrantLock();
+	private final int maximumPending;
+	private final ScheduledExecutorService flusher;
+	private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong coalesced = new AtomicLong();
+	private final AtomicLong flushes = new AtomicLong();
+	private final AtomicLong flushedAccounts = new AtomicLong();
+	private final AtomicLong failedFlushes = new AtomicLong();
+
+	public WriteBehindAccountDAO(IAccountDAO delegate, int maximumPending, long flushIntervalMillis) {
+		super(delegate);
+		if (maximumPending <= 0) throw new IllegalArgumentException("Buffer size must be positive: " + maximumPending);
+		if (flushIntervalMillis <= 0) throw new IllegalArgumentException("Flush interval must be positive: " + flushIntervalMillis);
+		this.maximumPending = maximumPending;
+		flusher = Executors.newSingleThreadScheduledExecutor(task -> {
+			Thread thread = new Thread(task, "account-write-behind");
+			thread.setDaemon(true);
+			return thread;
+		});
+		flusher.scheduleWithFixedDelay(this::flushInBackground, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Reads: the buffer first, the wrapped DAO for the rest
+	 */
+
+	@Override
+	public Account findByUserName(String userName) {
+		synchronized (this) {
+			Entry entry = buffered(userName);
+			if (entry != null) return entry.deleted ? null : entry.account.clone();
+		}
+		Account member = delegate.findByUserName(userName);
+		return member == null ? null : withOffset(member);
+	}
+
+	@Override
+	public Map<String, Account> findAllByUserNames(Collection<String> userNames) {
+		Map<String, Account> found = new HashMap<String, Account>();
+		List<String> unbuffered = new ArrayList<String>();
+		synchronized (this) {
+			for (String each : userNames) {
+				Entry entry = buffered(each);
+				if (entry == null) {
+					unbuffered.add(each);
+				} else if (!entry.deleted) {
+					found.put(each, entry.account.clone());
+				}
+			}
+		}
+		if (!unbuffered.isEmpty()) {
+			for (Account each : delegate.findAllByUserNames(unbuffered).values()) {
+				found.put(each.getUserName(), withOffset(each));
+			}
+		}
+		return found;
+	}
+
+	// the buffer is taken before the wrapped DAO is read, so what is flushed in between is still seen
+	@Override
+	public Set<Account> findAll() {
+		Map<String, Entry> buffered = snapshot();
+		Set<Account> found = new HashSet<Account>();
+		for (Account each : delegate.findAll()) {
+			Account member = overlay(each, buffered);
+			if (member != null) found.add(member);
+		}
+		return found;
+	}
+
+	@Override
+	public Set<String> findAllUserNames() {
+		Map<String, Entry> buffered = snapshot();
+		Set<String> found = delegate.findAllUserNames();
+		if (buffered.isEmpty()) return found;
+		found = new HashSet<String>(found);
+		for (Entry each : buffered.values()) {
+			if (each.deleted) found.remove(each.account.getUserName());
+		}
+		return found;
+	}
+
+	@Override
+	public Iterator<String> scanUserNames(String afterUserName) {
+		Map<String, Entry> buffered = snapshot();
+		Spliterator<String> userNames = Spliterators.spliteratorUnknownSize(delegate.scanUserNames(afterUserName), Spliterator.ORDERED);
+		return Spliterators.iterator(new ReadingSpliterator<String, String>(userNames, each -> overlay(each, buffered)));
+	}
+
+	@Override
+	public Spliterator<String> splitUserNames() {
+		Map<String, Entry> buffered = snapshot();
+		return new ReadingSpliterator<String, String>(delegate.splitUserNames(), each -> overlay(each, buffered));
+	}
+
+	@Override
+	public Spliterator<Account> splitAccounts() {
+		Map<String, Entry> buffered = snapshot();
+		return new ReadingSpliterator<Account, Account>(delegate.splitAccounts(), each -> overlay(each, buffered));
+	}
+
+	// the buffered state of an account the wrapped DAO returned; null if it is deleted in the buffer.
+	// Scans only see buffered accounts the wrapped DAO holds: buffered updates don't create them
+	private Account overlay(Account stored, Map<String, Entry> buffered) {
+		Entry entry = buffered.get(stored.getUserName());
+		if (entry == null) return withOffset(stored);
+		return entry.deleted ? null : entry.account.clone();
+	}
+
+	private static String overlay(String userName, Map<String, Entry> buffered) {
+		Entry entry = buffered.get(userName);
+		return entry != null && entry.deleted ? null : userName;
+	}
+
+	private synchronized Map<String, Entry> snapshot() {
+		if (pending.isEmpty() && flushing.isEmpty()) return Collections.emptyMap();
+		Map<String, Entry> buffered = new HashMap<String, Entry>(flushing);
+		buffered.putAll(pending);
+		return buffered;
+	}
+
+	private Account withOffset(Account stored) {
+		Long offset = versionOffsets.get(stored.getUserName());
+		if (offset != null) stored.setVersion(stored.version() + offset);
+		return stored;
+	}
+
+	private Entry buffered(String userName) {
+		Entry entry = pending.get(userName);
+		return entry != null ? entry : flushing.get(userName);
+	}
+
+	/*
+	 * Writes
+	 */
+
+	// saves keep an account that exists, so a buffered delete of it must be written first
+	@Override
+	public void save(Account member) {
+		if (isBuffered(Collections.singletonList(member))) flush();
+		try {
+			delegate.save(member);
+		} finally {
+			delegateWritten();
+		}
+	}
+
+	@Override
+	public void saveAll(Collection<Account> members) {
+		if (isBuffered(members)) flush();
+		try {
+			delegate.saveAll(members);
+		} finally {
+			delegateWritten();
+		}
+	}
+
+	private synchronized void delegateWritten() {
+		delegateWrites++;
+	}
+
+	private synchronized boolean isBuffered(Collection<Account> members) {
+		for (Account each : members) {
+			if (buffered(each.getUserName()) != null) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void update(Account member) {
+		updateAll(Collections.singletonList(member));
+	}
+
+	@Override
+	public void updateAll(Collection<Account> members) {
+		synchronized (this) {
+			for (Account each : members) {
+				Entry entry = buffered(each.getUserName());
+				long version = entry == null || entry.deleted ? each.version() + 1 : entry.account.version() + 1;
+				each.setVersion(version);
+				buffer(each, false);
+			}
+		}
+		requestFlushIfFull();
+	}
+
+	@Override
+	public void delete(Account member) {
+		deleteAll(Collections.singletonList(member));
+	}
+
+	@Override
+	public void deleteAll(Collection<Account> members) {
+		synchronized (this) {
+			for (Account each : members) {
+				buffer(each, true);
+			}
+		}
+		requestFlushIfFull();
+	}
+
+	// checks the versions against the buffer, and against the wrapped DAO for accounts that aren't buffered. 
+	// The wrapped DAO is read outside the monitor, then the read is checked to be still current under it: 
+	// the accounts must still be unbuffered and nothing written to the wrapped DAO since; otherwise read again
+	@Override
+	public boolean compareAndCommit(Collection<Account> updates, Collection<Account> deletes) {
+		Set<String> read = Collections.emptySet();
+		Map<String, Account> stored = Collections.emptyMap();
+		long readAt = 0;
+		while (true) {
+			Set<String> unbuffered;
+			synchronized (this) {
+				unbuffered = unbuffered(updates, deletes);
+				if (unbuffered.isEmpty() || (readAt == delegateWrites && read.containsAll(unbuffered))) {
+					if (!commitBuffered(updates, deletes, stored)) return false;
+					break;
+				}
+				readAt = delegateWrites;
+			}
+			stored = delegate.findAllByUserNames(unbuffered);
+			read = unbuffered;
+		}
+		requestFlushIfFull();
+		return true;
+	}
+
+	private Set<String> unbuffered(Collection<Account> updates, Collection<Account> deletes) {
+		Set<String> unbuffered = new HashSet<String>();
+		for (Collection<Account> accounts : Arrays.asList(updates, deletes)) {
+			for (Account each : accounts) {
+				if (buffered(each.getUserName()) == null) unbuffered.add(each.getUserName());
+			}
+		}
+		return unbuffered;
+	}
+
+	// under the monitor, with the wrapped DAO's accounts read for those that aren't buffered
+	private boolean commitBuffered(Collection<Account> updates, Collection<Account> deletes, Map<String, Account> stored) {
+		Map<String, Long> current = new HashMap<String, Long>();
+		for (Collection<Account> accounts : Arrays.asList(updates, deletes)) {
+			for (Account each : accounts) {
+				Entry entry = buffered(each.getUserName());
+				if (entry != null) {
+					if (!entry.deleted) current.put(each.getUserName(), entry.account.version());
+				} else if (stored.containsKey(each.getUserName())) {
+					long offset = versionOffsets.getOrDefault(each.getUserName(), 0L);
+					current.put(each.getUserName(), stored.get(each.getUserName()).version() + offset);
+				}
+			}
+		}
+		for (Collection<Account> accounts : Arrays.asList(updates, deletes)) {
+			for (Account each : accounts) {
+				Long version = current.get(each.getUserName());
+				if (version == null || version != each.version()) return false;
+			}
+		}
+		// an account updated twice in one commit gets two versions, as in a store
+		for (Account each : updates) {
+			long version = current.get(each.getUserName()) + 1;
+			current.put(each.getUserName(), version);
+			each.setVersion(version);
+			buffer(each, false);
+		}
+		for (Account each : deletes) {
+			buffer(each, true);
+		}
+		return true;
+	}
+
+	private void buffer(Account member, boolean deleted) {
+		writes.incrementAndGet();
+		Entry previous = pending.put(member.getUserName(), new Entry(member.clone(), deleted));
+		if (previous != null) coalesced.incrementAndGet();
+	}
+
+	/*
+	 * Flushing
+	 */
+
+	private void requestFlushIfFull() {
+		synchronized (this) {
+			if (pending.size() < maximumPending) return;
+		}
+		if (flushRequested.compareAndSet(false, true)) {
+			try {
+				flusher.execute(this::flushInBackground);
+			} catch (RuntimeException e) {
+				// closed: the buffer was written out on close, and later writes are flushed by the caller
+				flushRequested.set(false);
+			}
+		}
+	}
+
+	private void flushInBackground() {
+		flushRequested.set(false);
+		try {
+			flush();
+		} catch (RuntimeException e) {
+			// counted, and the accounts stay buffered for the next flush
+		}
+	}
+
+	// writes out everything buffered so far, then makes the wrapped DAO persist it
+	@Override
+	public void flush() {
+		flushLock.lock();
+		try {
+			Map<String, Entry> batch;
+			synchronized (this) {
+				batch = pending;
+				if (!batch.isEmpty()) {
+					flushing = batch;
+					pending = new LinkedHashMap<String, Entry>();
+				}
+			}
+			if (!batch.isEmpty()) write(batch);
+			delegate.flush();
+		} finally {
+			flushLock.unlock();
+		}
+	}
+
+	// commits the batch against the wrapped DAO's versions, then keeps how far the buffered ones are ahead
+	private void write(Map<String, Entry> batch) {
+		List<Account> created = new ArrayList<Account>();
+		List<Account> updates = new ArrayList<Account>();
+		List<Account> deletes = new ArrayList<Account>();
+		try {
+			Map<String, Account> stored = delegate.findAllByUserNames(batch.keySet());
+			for (Entry each : batch.values()) {
+				Account current = stored.get(each.account.getUserName());
+				// the wrapped DAO sets the versions of what it writes, so it gets copies
+				Account written = each.account.clone();
+				if (current == null) {
+					// a delete of an account that is gone has nothing left to do
+					if (!each.deleted) created.add(written);
+					continue;
+				}
+				written.setVersion(current.version());
+				(each.deleted ? deletes : updates).add(written);
+			}
+			// updates of accounts the wrapped DAO doesn't hold create them, which no commit can check
+			if (!created.isEmpty()) delegate.updateAll(created);
+			if ((!updates.isEmpty() || !deletes.isEmpty()) && !delegate.compareAndCommit(updates, deletes)) {
+				throw new IllegalStateException("Accounts were written around the write-behind buffer");
+			}
+		} catch (RuntimeException e) {
+			failedFlushes.incrementAndGet();
+			synchronized (this) {
+				// keep what wasn't written over since, ahead of it
+				Map<String, Entry> retained = new LinkedHashMap<String, Entry>(batch);
+				retained.putAll(pending);
+				pending = retained;
+				flushing = Collections.emptyMap();
+				delegateWrites++;
+			}
+			throw e;
+		}
+		synchronized (this) {
+			for (List<Account> written : Arrays.asList(created, updates)) {
+				for (Account each : written) {
+					long offset = batch.get(each.getUserName()).account.version() - each.version();
+					if (offset == 0) {
+						versionOffsets.remove(each.getUserName());
+					} else {
+						versionOffsets.put(each.getUserName(), offset);
+					}
+				}
+			}
+			for (Account each : deletes) {
+				versionOffsets.remove(each.getUserName());
+			}
+			flushing = Collections.emptyMap();
+			delegateWrites++;
+		}
+		flushes.incrementAndGet();
+		flushedAccounts.addAndGet(batch.size());
+	}
+
+	// writes out the buffer and stops the background flushes
+	@Override
+	public void close() {
+		flusher.shutdown();
+		flush();
+	}
+
+	/*
+	 * Statistics
+	 */
+
+	public synchronized int pendingCount() {
+		return pending.size();
+	}
+
+	// account writes accepted, buffered or not yet
+	public long writeCount() {
+		return writes.get();
+	}
+
+	// writes merged into a write of the same account that was still buffered
+	public long coalescedCount() {
+		return coalesced.get();
+	}
+
+	public long flushCount() {
+		return flushes.get();
+	}
+
+	public long flushedAccountCount() {
+		return flushedAccounts.get();
+	}
+
+	public long failedFlushCount() {
+		return failedFlushes.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("WriteBehindAccountDAO[pending=%d, writes=%d, coalesced=%d, flushes=%d, flushedAccounts=%d, failedFlushes=%d]",
+				pendingCount(), writeCount(), coalescedCount(), flushCount(), flushedAccountCount(), failedFlushCount());
+	}
+
+}
@@ -5,8 +5,11 @@ import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertEquals;
 
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.stream.Collectors;
 
 import org.junit.After;
 import org.junit.Before;
@@ -16,7 +19,8 @@ import org.junit.Test;
 public abstract class TestSNAbstractGeneric {
 	
 	protected IAccountDAO accountDAO; 
-	protected SocialNetwork sn = new SocialNetwork();
+	// subclasses inject their own DAO; the fake keeps the real data base out of the default instance 
+	protected SocialNetwork sn = new SocialNetwork(DAOFactory.getInstance().getAccountDAOFake());
 	protected Account m1, m2, m3, m4, m5;
 	protected Set<Account> all = new HashSet<Account>();
 
@@ -150,6 +154,30 @@ public abstract class TestSNAbstractGeneric {
 		assertTrue(members.contains(m3.getUserName()));
 	}
 
+	@Test
+	public void canListMembersPageByPage() throws NoUserLoggedInException,
+			UserNotFoundException {
+		sn.login(m1);
+		sn.block(m4.getUserName());
+		sn.login(m4);
+		MemberPage first = sn.listMembers(null, 2);
+		assertEquals(Arrays.asList("Dean", "Hakan"), first.getMembers());
+		assertTrue(first.hasNext());
+		MemberPage second = sn.listMembers(first.getNextCursor(), 2);
+		assertEquals(Arrays.asList("Hasan", "Serra"), second.getMembers());
+		assertFalse(second.hasNext());
+	}
+
+	@Test
+	public void canStreamMembersInOrder() throws NoUserLoggedInException,
+			UserNotFoundException {
+		sn.login(m2);
+		sn.block(m1.getUserName());
+		sn.login(m1);
+		List<String> members = sn.streamMembers().collect(Collectors.toList());
+		assertEquals(Arrays.asList("Dean", "Hasan", "John", "Serra"), members);
+	}
+
 	@Test
 	public void sendingFriendRequestCreatesPendingRequestAndResponse()
 			throws UserNotFoundException, NoUserLoggedInException {
@@ -246,6 +274,15 @@ public abstract class TestSNAbstractGeneric {
 		assertFalse(allMembers.contains(m2.getUserName()));
 	}
 
+	@Test(expected = UserNotFoundException.class)
+	public void blockingAMemberMakesUserInvisibleToHerInSendFriendshipTo()
+			throws UserNotFoundException, NoUserLoggedInException {
+		sn.login(m2);
+		sn.block(m3.getUserName());
+		sn.login(m3);
+		sn.sendFriendshipTo(m2.getUserName());
+	}
+
 	@Test
 	public void recommendMembersReturnsSharedFriendsOfMyFriends()
 			throws UserNotFoundException, NoUserLoggedInException {
@@ -269,6 +306,89 @@ public abstract class TestSNAbstractGeneric {
 		assertEquals(1, recommendations.size());
 	}
 	
+	@Test
+	public void recommendTopFriendsRanksByMutualFriends()
+			throws UserNotFoundException, NoUserLoggedInException {
+		sn.login(m1);
+		sn.sendFriendshipTo(m2.getUserName());
+		sn.sendFriendshipTo(m3.getUserName());
+		sn.login(m2);
+		sn.acceptFriendshipFrom(m1.getUserName());
+		sn.sendFriendshipTo(m4.getUserName());
+		sn.sendFriendshipTo(m5.getUserName());
+		sn.login(m3);
+		sn.acceptFriendshipFrom(m1.getUserName());
+		sn.sendFriendshipTo(m4.getUserName());
+		sn.login(m4);
+		sn.acceptFriendshipFrom(m2.getUserName());
+		sn.acceptFriendshipFrom(m3.getUserName());
+		sn.login(m5);
+		sn.acceptFriendshipFrom(m2.getUserName());
+		sn.login(m1);
+		List<FriendRecommendation> recommendations = sn.recommendFriends(5);
+		assertEquals(Arrays.asList(new FriendRecommendation("Dean", 2), new FriendRecommendation("Hasan", 1)), 
+				recommendations);
+		assertEquals(Arrays.asList(new FriendRecommendation("Dean", 2)), sn.recommendFriends(1));
+		sn.block(m4.getUserName());
+		assertEquals(Arrays.asList(new FriendRecommendation("Hasan", 1)), sn.recommendFriends(5));
+	}
+
+	@Test
+	public void sessionsOfDifferentMembersCanBeOpenAtTheSameTime()
+			throws UserNotFoundException, NoUserLoggedInException {
+		Session john = sn.openSession(m1);
+		Session hakan = sn.openSession(m2);
+		john.sendFriendshipTo(m2.getUserName());
+		assertTrue(hakan.getAccount().getIncomingRequests().contains(m1.getUserName()));
+		hakan.acceptFriendshipFrom(m1.getUserName());
+		assertTrue(john.getAccount().getFriends().contains(m2.getUserName()));
+		hakan.block(m3.getUserName());
+		Session serra = sn.openSession(m3);
+		assertFalse(serra.hasMember(m2.getUserName()));
+		assertTrue(john.hasMember(m2.getUserName()));
+		// sessions don't log in the single current user
+		try {
+			sn.listMembers();
+			fail("Nobody should be logged in");
+		} catch (NoUserLoggedInException e) {
+		}
+	}
+
+	@Test
+	public void closedSessionIsLoggedOut() throws UserNotFoundException, NoUserLoggedInException {
+		Session session = sn.openSession(m1);
+		assertEquals(m1.getUserName(), session.getUserName());
+		session.close();
+		assertFalse(session.isOpen());
+		try {
+			session.listMembers();
+			fail("The session is closed");
+		} catch (NoUserLoggedInException e) {
+		}
+	}
+
+	@Test
+	public void leavingClosesAllSessionsOfTheMember() throws UserNotFoundException, NoUserLoggedInException {
+		Session first = sn.openSession(m2);
+		Session second = sn.openSession(m2);
+		first.leave();
+		assertFalse(first.isOpen());
+		try {
+			second.listMembers();
+			fail(m2.getUserName() + " has left");
+		} catch (NoUserLoggedInException e) {
+		}
+		assertFalse(second.isOpen());
+		assertFalse(sn.openSession(m1).hasMember(m2.getUserName()));
+	}
+
+	@Test(expected = UserNotFoundException.class)
+	public void cannotOpenSessionOfNonMember() throws UserNotFoundException {
+		Account anonymous = new Account();
+		anonymous.setUserName("Anonymous");
+		sn.openSession(anonymous);
+	}
+
     @Test
 	public void canLeaveSocialNetwork() throws UserNotFoundException,
 			NoUserLoggedInException {
@@ -476,5 +596,20 @@ public abstract class TestSNAbstractGeneric {
 		assertTrue(clone.blockedMembers().contains(m1.getUserName()));
 		assertTrue(clone.getIncomingRequests().contains(m5.getUserName()));
 	}
+	
+	@Test public void relationSetsAreLiveViewsOfTheAccount() {
+		Account member = m2.clone();
+		member.getOutgoingRequests().add(m3.getUserName());
+		member.getOutgoingRequests().add(m4.getUserName());
+		assertEquals(2, member.getOutgoingRequests().size());
+		assertTrue(member.getOutgoingRequests().contains(m4.getUserName()));
+		assertFalse(member.getOutgoingRequests().contains("Nobody"));
+		member.getOutgoingRequests().remove(m3.getUserName());
+		assertFalse(member.getOutgoingRequests().contains(m3.getUserName()));
+		assertFalse(member.equals(m2));
+		member.getOutgoingRequests().retainAll(new HashSet<String>());
+		assertTrue(member.getOutgoingRequests().isEmpty());
+		assertTrue(member.equals(m2));
+	}
 
 }
@@ -0,0 +1,223 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithCachingDAO extends TestSNAbstractGeneric {
+
+	AccountDAOFake backing;
+	CachingAccountDAO cache;
+
+	@Override @Before
+	public void setUp() throws Exception {
+		backing = spy(AccountDAOFake.class);
+		cache = new CachingAccountDAO(backing, 100);
+		accountDAO = cache;
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+
+	private static Account account(String userName) {
+		Account member = new Account();
+		member.setUserName(userName);
+		return member;
+	}
+
+	/*
+	 * Generic tests are inherited: the cache must not change what the network sees
+	 */
+
+	@Test
+	public void hitsDontReachTheBackingDAO() {
+		cache.findByUserName("John");
+		clearInvocations(backing);
+		for (int i = 0; i < 10; i++) {
+			assertEquals("John", cache.findByUserName("John").getUserName());
+		}
+		cache.findAllByUserNames(Arrays.asList("John"));
+		verifyNoInteractions(backing);
+		assertTrue(cache.hitCount() >= 11);
+		assertTrue(cache.hitRate() > 0.5);
+	}
+
+	@Test
+	public void callersCantChangeCachedAccounts() {
+		cache.findByUserName("John").autoAcceptFriendships();
+		assertFalse(cache.findByUserName("John").autoAccepts());
+	}
+
+	@Test
+	public void writesInvalidateCachedAccounts() throws Exception {
+		cache.findByUserName("John");
+		sn.login(m1);
+		sn.block("Hakan");
+		assertTrue(cache.findByUserName("John").blockedMembers().contains("Hakan"));
+		assertTrue(cache.findByUserName("Hakan").blockedByMembers().contains("John"));
+		sn.leave();
+		assertNull(cache.findByUserName("John"));
+	}
+
+	@Test
+	public void loadsRacingWritesToOtherAccountsAreCached() {
+		// a write to another account while John is read from the backing DAO
+		doAnswer(invocation -> {
+			cache.invalidate("Hakan");
+			return invocation.callRealMethod();
+		}).when(backing).findByUserName("John");
+		cache.findByUserName("John");
+		clearInvocations(backing);
+		cache.findByUserName("John");
+		verify(backing, never()).findByUserName("John");
+	}
+
+	@Test
+	public void loadsRacingWritesToTheirAccountAreNotCached() {
+		doAnswer(invocation -> {
+			cache.invalidate("John");
+			return invocation.callRealMethod();
+		}).when(backing).findByUserName("John");
+		cache.findByUserName("John");
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.weight());
+	}
+
+	@Test
+	public void batchReadsOnlyLoadTheMisses() {
+		cache.findByUserName("John");
+		clearInvocations(backing);
+		long loads = cache.loadCount();
+		assertEquals(3, cache.findAllByUserNames(Arrays.asList("John", "Hakan", "Serra")).size());
+		verify(backing, times(1)).findAllByUserNames(Arrays.asList("Hakan", "Serra"));
+		assertEquals(loads + 2, cache.loadCount());
+	}
+
+	@Test
+	public void hotAccountsSurviveAScanOfColdOnes() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			backing.save(account("Hot" + i));
+		}
+		for (int i = 0; i < 1000; i++) {
+			backing.save(account("Cold" + i));
+		}
+		for (int round = 0; round < 5; round++) {
+			for (int i = 0; i < 10; i++) {
+				cache.findByUserName("Hot" + i);
+			}
+		}
+		for (int i = 0; i < 1000; i++) {
+			cache.findByUserName("Cold" + i);
+		}
+		assertTrue(cache.evictionCount() > 0);
+		assertTrue(cache.size() <= 100);
+		long hits = cache.hitCount();
+		for (int i = 0; i < 10; i++) {
+			cache.findByUserName("Hot" + i);
+		}
+		assertEquals(hits + 10, cache.hitCount());
+	}
+
+	@Test
+	public void smallestCacheKeepsAnAccountPastTheWindow() {
+		CachingAccountDAO smallest = new CachingAccountDAO(backing, 2);
+		smallest.findByUserName("John");
+		smallest.findByUserName("Hakan");
+		smallest.findByUserName("Serra");
+		assertEquals(2, smallest.size());
+		assertEquals(2, smallest.weight());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void boundsWithNoRoomPastTheWindowAreRejected() {
+		new CachingAccountDAO(backing, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void byteBoundsTooSmallForAnEntryAreRejected() {
+		CachingAccountDAO.boundedByBytes(backing, 64);
+	}
+
+	@Test
+	public void bufferedReadsAreReplayedInOrder() {
+		ReadBuffer<Integer> buffer = new ReadBuffer<Integer>(1);
+		for (int i = 0; i < 10; i++) {
+			assertTrue(buffer.offer(i));
+		}
+		List<Integer> drained = new ArrayList<Integer>();
+		assertEquals(10, buffer.drainTo(drained::add));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4, 5, 6, 7, 8, 9), drained);
+		assertEquals(0, buffer.drainTo(drained::add));
+	}
+
+	@Test
+	public void fullBufferDropsReadsUntilDrained() {
+		ReadBuffer<Integer> buffer = new ReadBuffer<Integer>(1);
+		int offered = 0;
+		while (buffer.offer(offered)) {
+			offered++;
+		}
+		assertEquals(1, buffer.droppedCount());
+		assertEquals(offered, buffer.drainTo(each -> { }));
+		assertTrue(buffer.offer(offered));
+	}
+
+	@Test
+	public void readsFromManyThreadsAreDrainedOrCountedAsDropped() throws Exception {
+		ReadBuffer<Integer> buffer = new ReadBuffer<Integer>(4);
+		AtomicLong drained = new AtomicLong();
+		AtomicInteger done = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(9);
+		List<Future<?>> readers = new ArrayList<Future<?>>();
+		for (int t = 0; t < 8; t++) {
+			readers.add(pool.submit(() -> {
+				for (int i = 0; i < 10000; i++) {
+					buffer.offer(i);
+				}
+				done.incrementAndGet();
+			}));
+		}
+		// the one drainer, as the holder of a policy's lock would be
+		Future<?> drainer = pool.submit(() -> {
+			while (done.get() < 8) {
+				drained.addAndGet(buffer.drainTo(each -> { }));
+			}
+			drained.addAndGet(buffer.drainTo(each -> { }));
+		});
+		for (Future<?> each : readers) {
+			each.get();
+		}
+		drainer.get();
+		pool.shutdown();
+		assertEquals(80000, drained.get() + buffer.droppedCount());
+		assertTrue(drained.get() > 0);
+	}
+
+	@Test
+	public void cacheBoundedByBytesStaysWithinItsBound() throws Exception {
+		long maximumBytes = 20 * CachingAccountDAO.estimatedBytes(account("Member00"));
+		CachingAccountDAO small = CachingAccountDAO.boundedByBytes(backing, maximumBytes);
+		for (int i = 0; i < 100; i++) {
+			backing.save(account("Member" + (10 + i)));
+			small.findByUserName("Member" + (10 + i));
+			assertTrue(small.weight() <= maximumBytes);
+		}
+		assertTrue(small.size() > 0);
+		assertTrue(small.evictionCount() > 0);
+		assertTrue(small.toString().contains("evictions="));
+	}
+
+}
@@ -4,6 +4,24 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.stream.Collectors;
+import java.util.stream.StreamSupport;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.LockSupport;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -34,5 +52,455 @@ public class TestSNWithFakeDAO extends TestSNAbstractGeneric {
 		fail("How come creating another "  + anotherSurya.getUserName() + " worked?");
 		// because a DB doesn’t behave this way, does it? 
 	}
+	
+	@Test
+	public void memberWithSeveralFriendsCanLeave() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		sn.login(m3);
+		sn.acceptFriendshipFrom("John");
+		sn.login(m1);
+		sn.leave();
+		assertTrue(accountDAO.findByUserName("Hakan").getFriends().isEmpty());
+		assertTrue(accountDAO.findByUserName("Serra").getFriends().isEmpty());
+		assertEquals(4, accountDAO.findAll().size());
+	}
+	
+	@Test
+	public void mutualFriendCounterStartsSmallAndGrows() {
+		// an upper bound on the keys, as for a hub, doesn't size the table
+		IntIntCounter counts = new IntIntCounter(Integer.MAX_VALUE);
+		assertTrue(counts.capacity() <= 1 << 12);
+		for (int key = 0; key < 100000; key++) {
+			counts.increment(key);
+			counts.increment(key / 2);
+		}
+		assertEquals(100000, counts.size());
+		assertEquals(3, counts.get(10));
+		assertEquals(1, counts.get(99999));
+		assertTrue(counts.capacity() >= 2 * counts.size());
+	}
+	
+	@Test
+	public void recommendFriendsFromFriendshipGraph() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		sn.sendFriendshipTo("Dean");
+		sn.login(m3);
+		sn.acceptFriendshipFrom("John");
+		sn.sendFriendshipTo("Dean");
+		sn.login(m4);
+		sn.acceptFriendshipFrom("Hakan");
+		sn.acceptFriendshipFrom("Serra");
+		sn.login(m1);
+		Set<String> expected = sn.recommendFriends();
+		File file = File.createTempFile("friendships", ".csr");
+		try {
+			FriendshipGraph graph = FriendshipGraph.build(accountDAO, file);
+			assertEquals(5, graph.memberCount());
+			assertEquals(2, graph.degree(graph.idOf("Dean")));
+			assertTrue(graph.areFriends(graph.idOf("Dean"), graph.idOf("Serra")));
+			assertFalse(graph.areFriends(graph.idOf("Dean"), graph.idOf("John")));
+			assertEquals(expected, graph.recommendFriends("John", m1.blockedMembers()));
+			sn.useFriendshipGraph(graph);
+			assertEquals(expected, sn.recommendFriends());
+			sn.login(m4);
+			sn.sendFriendshipCancellationTo("Serra");
+			sn.login(m1);
+			// the graph is out of date now, so the network falls back to the DAO
+			assertTrue(sn.recommendFriends().isEmpty());
+		} finally {
+			file.delete();
+		}
+	}
+	
+	@Test
+	public void repeatedRecommendationsAreServedFromCache() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		sn.login(m3);
+		sn.acceptFriendshipFrom("John");
+		sn.sendFriendshipTo("Dean");
+		sn.login(m4);
+		sn.acceptFriendshipFrom("Serra");
+		sn.sendFriendshipTo("Hakan");
+		sn.login(m1);
+		RecommendationCache cache = sn.recommendationCache();
+		assertTrue(sn.recommendFriends().isEmpty());
+		assertTrue(sn.recommendFriends().isEmpty());
+		assertEquals(1, cache.missCount());
+		assertEquals(1, cache.hitCount());
+		// Hakan is John's friend, so his new friendship changes John's recommendations
+		sn.login(m2);
+		sn.acceptFriendshipFrom("Dean");
+		sn.login(m1);
+		assertEquals(1, sn.recommendFriends().size());
+		assertEquals(2, cache.missCount());
+		assertEquals(1, sn.recommendFriends(3).size());
+		assertEquals(1, sn.recommendFriends(1).size());
+		assertEquals(2, cache.hitCount());
+		sn.block("Dean");
+		assertTrue(sn.recommendFriends().isEmpty());
+	}
+
+	@Test
+	public void recommendationsAreComputedFromTheAccountAsStoredWhenStamped() throws Exception {
+		// Hakan and Serra are Dean's friends; John's requests to them are pending
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.login(m4);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		for (Account each : new Account[] { m2, m3 }) {
+			try (Session session = sn.openSession(each)) {
+				session.acceptFriendshipFrom("Dean");
+			}
+		}
+		// John's account is read, then his friendships commit before his recommendations are computed
+		Account loaded = accountDAO.findByUserName("John");
+		for (Account each : new Account[] { m2, m3 }) {
+			try (Session session = sn.openSession(each)) {
+				session.acceptFriendshipFrom("John");
+			}
+		}
+		Set<String> dean = Collections.singleton("Dean");
+		assertEquals(dean, sn.recommendFriends(loaded));
+		assertEquals(1, sn.recommendFriends(loaded, 3).size());
+		try (Session session = sn.openSession(m1)) {
+			assertEquals(dean, session.recommendFriends());
+			assertEquals("Dean", session.recommendFriends(3).get(0).getUserName());
+		}
+	}
+
+	@Test
+	public void recommendationsComputedDuringUnrelatedChangesAreCached() {
+		RecommendationCache cache = new RecommendationCache(100);
+		long stamp = cache.stamp("John");
+		cache.invalidateAll(Arrays.asList("Dean", "Hasan"));
+		cache.putRecommendations("John", stamp, new HashSet<String>(Arrays.asList("Serra")));
+		assertEquals(Collections.singleton("Serra"), cache.getRecommendations("John"));
+		stamp = cache.stamp("John");
+		cache.invalidate("John");
+		cache.putRecommendations("John", stamp, new HashSet<String>(Arrays.asList("Hakan")));
+		assertNull(cache.getRecommendations("John"));
+	}
+
+	@Test
+	public void manySessionsCanShareOneNetworkAcrossThreads() throws Exception {
+		// a ring where everybody is friends with the two members on each side, so the members three steps away 
+		// have two friends in common with them
+		final int size = 16;
+		Account[] members = new Account[size];
+		for (int i = 0; i < size; i++) {
+			members[i] = sn.join("Ring" + i);
+		}
+		for (int i = 0; i < size; i++) {
+			Session session = sn.openSession(members[i]);
+			session.autoAcceptFriendships();
+			session.close();
+		}
+		for (int i = 0; i < size; i++) {
+			Session session = sn.openSession(members[i]);
+			session.sendFriendshipTo("Ring" + (i + 1) % size);
+			session.sendFriendshipTo("Ring" + (i + 2) % size);
+			session.close();
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < size; i++) {
+			final Account member = members[i];
+			final Set<String> expected = new HashSet<String>(Arrays.asList(
+					"Ring" + (i + 3) % size, "Ring" + (i + size - 3) % size));
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					Session session = sn.openSession(member);
+					for (int round = 0; round < 200; round++) {
+						if (!session.recommendFriends().equals(expected)) return false;
+						if (session.listMembers().size() != size + 5) return false;
+					}
+					session.close();
+					return true;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Boolean> each : results) {
+			assertTrue(each.get());
+		}
+		assertTrue(sn.recommendationCache().hitCount() > 0);
+	}
+
+	@Test
+	public void recommendationsCachedWhileFriendshipsChangeMatchTheFinalNetwork() throws Exception {
+		// the same ring, where some members keep ending and renewing friendships while all of them ask for 
+		// recommendations; whatever stays cached must be what the final network gives
+		final int size = 16;
+		Account[] members = new Account[size];
+		for (int i = 0; i < size; i++) {
+			members[i] = sn.join("Ring" + i);
+			try (Session session = sn.openSession(members[i])) {
+				session.autoAcceptFriendships();
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			try (Session session = sn.openSession(members[i])) {
+				session.sendFriendshipTo("Ring" + (i + 1) % size);
+				session.sendFriendshipTo("Ring" + (i + 2) % size);
+			}
+		}
+		// reads return late, so changes commit between an operation's read of an account and what follows
+		final SocialNetwork network = new SocialNetwork(new ForwardingAccountDAO(accountDAO) {
+			@Override
+			public Account findByUserName(String userName) {
+				Account member = super.findByUserName(userName);
+				LockSupport.parkNanos(200000);
+				return member;
+			}
+		});
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < size; i += 4) {
+			final Account member = members[i];
+			final String friend = "Ring" + (i + 1) % size;
+			final int toggles = 50 + i;
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try (Session session = network.openSession(member)) {
+						for (int round = 0; round < toggles; round++) {
+							if (round % 2 == 0) session.sendFriendshipCancellationTo(friend); else session.sendFriendshipTo(friend);
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		for (int i = 0; i < size; i++) {
+			final Account member = members[i];
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					try (Session session = network.openSession(member)) {
+						for (int round = 0; round < 100; round++) {
+							session.recommendFriends();
+							session.recommendFriends(3);
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Boolean> each : results) {
+			assertTrue(each.get());
+		}
+		// a network with an empty cache computes everything afresh
+		SocialNetwork uncached = new SocialNetwork(accountDAO);
+		for (Account each : members) {
+			try (Session cached = network.openSession(each); Session fresh = uncached.openSession(each)) {
+				assertEquals(fresh.recommendFriends(), cached.recommendFriends());
+				assertEquals(fresh.recommendFriends(3), cached.recommendFriends(3));
+			}
+		}
+	}
+
+	@Test
+	public void concurrentFriendshipChangesLeaveNoOneSidedRelations() throws Exception {
+		final int size = 12;
+		final Account[] members = new Account[size];
+		for (int i = 0; i < size; i++) {
+			members[i] = sn.join("Pair" + i);
+		}
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 8; t++) {
+			final Random random = new Random(t);
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					for (int round = 0; round < 300; round++) {
+						int from = random.nextInt(size);
+						int to = (from + 1 + random.nextInt(size - 1)) % size;
+						Session sender = sn.openSession(members[from]);
+						Session receiver = sn.openSession(members[to]);
+						sender.sendFriendshipTo(members[to].getUserName());
+						switch (random.nextInt(3)) {
+						case 0: receiver.acceptFriendshipFrom(members[from].getUserName()); break;
+						case 1: receiver.rejectFriendshipFrom(members[from].getUserName()); break;
+						default: receiver.sendFriendshipCancellationTo(members[from].getUserName());
+						}
+					}
+					return true;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Boolean> each : results) {
+			assertTrue(each.get());
+		}
+		for (Account each : members) {
+			Account member = accountDAO.findByUserName(each.getUserName());
+			for (String friend : member.getFriends()) {
+				assertTrue(accountDAO.findByUserName(friend).getFriends().contains(member.getUserName()));
+			}
+			for (String requested : member.getOutgoingRequests()) {
+				assertTrue(accountDAO.findByUserName(requested).getIncomingRequests().contains(member.getUserName()));
+			}
+			for (String requester : member.getIncomingRequests()) {
+				assertTrue(accountDAO.findByUserName(requester).getOutgoingRequests().contains(member.getUserName()));
+			}
+		}
+		MemberLocks locks = sn.memberLocks();
+		long acquisitions = 0;
+		for (int stripe = 0; stripe < locks.stripeCount(); stripe++) {
+			acquisitions += locks.acquisitions(stripe);
+		}
+		assertTrue(acquisitions >= 8 * 300 * 2);
+	}
+
+	@Test
+	public void networksSharingADAODontLoseUpdatesOfAHotAccount() throws Exception {
+		final Account celebrity = sn.join("Celebrity");
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 8; t++) {
+			// a network per thread: their member locks don't know about each other, only the versions protect the celebrity
+			final SocialNetwork network = new SocialNetwork(accountDAO);
+			final int thread = t;
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					for (int i = 0; i < 25; i++) {
+						network.openSession(network.join("Fan" + thread + "." + i)).sendFriendshipTo("Celebrity");
+					}
+					return true;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Boolean> each : results) {
+			assertTrue(each.get());
+		}
+		Account stored = accountDAO.findByUserName(celebrity.getUserName());
+		assertEquals(8 * 25, stored.getIncomingRequests().size());
+		assertEquals(8 * 25, stored.version());
+	}
+
+	@Test
+	public void generatedFriendshipsFollowAPowerLaw() throws Exception {
+		SocialGraphGenerator generator = new SocialGraphGenerator(5000, 3, 7).setRequestsPerMember(0.5).setBlocksPerMember(0.2);
+		IAccountDAO generated = new AccountDAOFake();
+		generator.populate(generated);
+		int[] degrees = generator.degrees();
+		int max = 0;
+		int total = 0;
+		for (int each : degrees) {
+			assertTrue(each >= 3);
+			max = Math.max(max, each);
+			total += each;
+		}
+		assertEquals(2 * (4 * 3 / 2 + (5000 - 4) * 3), total);
+		// hubs: far above the average of six friends
+		assertTrue(max > 60);
+		int requests = 0;
+		int blocks = 0;
+		for (String each : generator.userNames()) {
+			Account member = generated.findByUserName(each);
+			assertEquals(degrees[generator.userNames().indexOf(each)], member.getFriends().size());
+			for (String friend : member.getFriends()) {
+				assertTrue(generated.findByUserName(friend).getFriends().contains(each));
+			}
+			for (String other : member.getOutgoingRequests()) {
+				assertTrue(generated.findByUserName(other).getIncomingRequests().contains(each));
+			}
+			requests += member.getOutgoingRequests().size();
+			blocks += member.blockedMembers().size();
+		}
+		assertEquals(2500, requests);
+		assertEquals(1000, blocks);
+	}
+	
+	@Test
+	public void generatorBuildsTheSameNetworkThroughTheOperations() throws Exception {
+		SocialGraphGenerator generator = new SocialGraphGenerator(60, 2, 11).setRequestsPerMember(1).setBlocksPerMember(0.5)
+				.setUserNamePrefix("Generated");
+		generator.populate(sn);
+		IAccountDAO direct = new AccountDAOFake();
+		generator.populate(direct);
+		for (String each : generator.userNames()) {
+			Account operated = accountDAO.findByUserName(each);
+			Account saved = direct.findByUserName(each);
+			assertEquals(saved.getFriends(), operated.getFriends());
+			assertEquals(saved.getIncomingRequests(), operated.getIncomingRequests());
+			assertEquals(saved.getOutgoingRequests(), operated.getOutgoingRequests());
+			assertEquals(saved.blockedMembers(), operated.blockedMembers());
+		}
+	}
+	
+	@Test(expected = IllegalArgumentException.class)
+	public void generatorRejectsMoreRelationsThanUnrelatedPairs() {
+		// 4 members, one friend each, leave 3 of the 6 pairs of members unrelated
+		new SocialGraphGenerator(4, 1, 13).setRequestsPerMember(0.5).setBlocksPerMember(0.5).userNames();
+	}
+	
+	@Test
+	public void parallelScansSeeWhatSequentialOnesSee() throws Exception {
+		SocialGraphGenerator generator = new SocialGraphGenerator(20000, 2, 3).setBlocksPerMember(0.5).setUserNamePrefix("Scanned");
+		generator.populate(accountDAO);
+		Spliterator<String> userNames = accountDAO.splitUserNames();
+		assertNotNull(userNames.trySplit());
+		assertTrue(userNames.estimateSize() < 20005);
+		for (String each : generator.userNames().subList(0, 10)) {
+			Account member = sn.login(accountDAO.findByUserName(each));
+			Set<String> expected = sn.listMembers();
+			sn.setParallelScans(true);
+			assertEquals(expected, sn.listMembers());
+			sn.setParallelScans(false);
+			assertEquals(20005 - member.blockedByMembers().size(), expected.size());
+		}
+		Set<String> scanned = StreamSupport.stream(accountDAO.splitAccounts(), true).map(Account::getUserName)
+				.collect(Collectors.toSet());
+		assertEquals(accountDAO.findAllUserNames(), scanned);
+	}
+	
+	@Test
+	public void workloadDriverReportsLatencyPercentiles() throws Exception {
+		SocialGraphGenerator generator = new SocialGraphGenerator(200, 3, 5).setRequestsPerMember(1).setBlocksPerMember(0.1)
+				.setUserNamePrefix("Driven");
+		generator.populate(accountDAO);
+		WorkloadDriver driver = new WorkloadDriver(sn, generator.userNames(), 4).setWeight(WorkloadDriver.Operation.LIST_MEMBERS, 0);
+		WorkloadDriver.Report report = driver.run(250);
+		assertEquals(4 * 250, report.operationCount() + report.errorCount());
+		assertTrue(report.throughput() > 0);
+		assertEquals(0, report.latencies(WorkloadDriver.Operation.LIST_MEMBERS).count());
+		LatencyHistogram all = report.latencies();
+		assertTrue(all.percentile(50) <= all.percentile(99));
+		assertTrue(all.percentile(99) <= all.percentile(99.9));
+		assertTrue(all.percentile(99.9) <= all.max());
+		// the generated members are all still there
+		for (String each : generator.userNames()) {
+			assertNotNull(accountDAO.findByUserName(each));
+		}
+	}
+	
+	@Test
+	public void latencyPercentilesAreWithinThreePercent() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long nanos = 1; nanos <= 1000000; nanos++) {
+			histogram.record(nanos);
+		}
+		assertEquals(1000000, histogram.count());
+		assertEquals(500000, histogram.percentile(50), 500000 * 0.03);
+		assertEquals(990000, histogram.percentile(99), 990000 * 0.03);
+		assertEquals(999000, histogram.percentile(99.9), 999000 * 0.03);
+		assertEquals(1000000, histogram.percentile(100));
+		assertEquals(500000.5, histogram.mean(), 0.001);
+	}
 
 }
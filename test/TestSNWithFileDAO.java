@@ -0,0 +1,326 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithFileDAO extends TestSNAbstractGeneric {
+	
+	private File dataBase;
+	
+	@Override @Before
+	public void setUp() throws Exception {
+		dataBase = Files.createTempDirectory("accounts").toFile();
+		accountDAO = new AccountDAO(dataBase.getPath());
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+	
+	@Override @After
+	public void tearDown() throws Exception {
+		((AccountDAO) accountDAO).close();
+		for (File each : dataBase.listFiles()) {
+			each.delete();
+		}
+		dataBase.delete();
+		super.tearDown();
+	}
+	
+	/* 
+	 * Generic tests are automatically inherited here - they should work with the real, file-backed DAO!
+	 */
+	
+	// closes the data base and opens it again, as a process restart would 
+	private void restart() {
+		((AccountDAO) accountDAO).close();
+		accountDAO = new AccountDAO(dataBase.getPath());
+		sn = new SocialNetwork(accountDAO);
+	}
+	
+	@Test
+	public void reportsWhetherConnected() {
+		assertTrue(((AccountDAO) accountDAO).isConnectedToDB());
+		((AccountDAO) accountDAO).close();
+		assertFalse(((AccountDAO) accountDAO).isConnectedToDB());
+		accountDAO = new AccountDAO(dataBase.getPath());
+	}
+	
+	@Test(expected = UserExistsException.class)
+	public void membersSurviveRestart() throws UserExistsException {
+		restart();
+		sn.join("Hakan");
+	}
+	
+	@Test
+	public void friendshipsSurviveRestart() throws UserNotFoundException, NoUserLoggedInException {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.block("Dean");
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		restart();
+		Account john = sn.login(m1);
+		assertTrue(john.getFriends().contains("Hakan"));
+		assertTrue(john.blockedMembers().contains("Dean"));
+		assertTrue(sn.login(m2).getFriends().contains("John"));
+	}
+	
+	@Test
+	public void leavingSurvivesRestart() throws UserNotFoundException, NoUserLoggedInException {
+		sn.login(m2);
+		sn.leave();
+		restart();
+		assertNull(accountDAO.findByUserName("Hakan"));
+		assertNotNull(accountDAO.findByUserName("Serra"));
+		assertEquals(4, accountDAO.findAll().size());
+	}
+	
+	@Test
+	public void canFindManyMembersInOneBatch() throws UserNotFoundException, NoUserLoggedInException {
+		sn.login(m1);
+		sn.sendFriendshipTo("Serra");
+		Map<String, Account> found = accountDAO.findAllByUserNames(Arrays.asList("Serra", "Nobody", "John", "Hasan"));
+		assertEquals(3, found.size());
+		assertEquals(accountDAO.findByUserName("Serra"), found.get("Serra"));
+		assertTrue(found.get("John").getOutgoingRequests().contains("Serra"));
+		assertEquals("Hasan", found.get("Hasan").getUserName());
+	}
+	
+	@Test
+	public void tornBatchIsDroppedAsAWhole() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Serra");
+		((AccountDAO) accountDAO).close();
+		File segment = dataBase.listFiles()[0];
+		long beforeBatch = segment.length();
+		accountDAO = new AccountDAO(dataBase.getPath());
+		sn = new SocialNetwork(accountDAO);
+		sn.login(m3);
+		sn.acceptFriendshipFrom("John");
+		((AccountDAO) accountDAO).close();
+		// simulate a crash in the middle of writing the batch
+		RandomAccessFile file = new RandomAccessFile(segment, "rw");
+		file.setLength(beforeBatch + (segment.length() - beforeBatch) / 2);
+		file.close();
+		accountDAO = new AccountDAO(dataBase.getPath());
+		assertTrue(accountDAO.findByUserName("John").getOutgoingRequests().contains("Serra"));
+		assertTrue(accountDAO.findByUserName("Serra").getIncomingRequests().contains("John"));
+		assertFalse(accountDAO.findByUserName("Serra").getFriends().contains("John"));
+	}
+	
+	@Test
+	public void staleCommitsAreRejectedAcrossRestarts() {
+		Account first = accountDAO.findByUserName("Hakan");
+		Account second = accountDAO.findByUserName("Hakan");
+		first.autoAcceptFriendships();
+		assertTrue(accountDAO.compareAndCommit(Arrays.asList(first), Arrays.<Account>asList()));
+		second.block(accountDAO.findByUserName("Dean"));
+		assertFalse(accountDAO.compareAndCommit(Arrays.asList(second), Arrays.<Account>asList()));
+		restart();
+		Account stored = accountDAO.findByUserName("Hakan");
+		assertTrue(stored.autoAccepts());
+		assertTrue(stored.blockedMembers().isEmpty());
+		assertEquals(first.version(), stored.version());
+		assertFalse(accountDAO.compareAndCommit(Arrays.<Account>asList(), Arrays.asList(second)));
+		assertTrue(accountDAO.compareAndCommit(Arrays.<Account>asList(), Arrays.asList(stored)));
+		assertNull(accountDAO.findByUserName("Hakan"));
+	}
+	
+	@Test
+	public void restartLoadsTheCheckpointAndReplaysOnlyTheTail() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.block("Dean");
+		AccountDAO dao = (AccountDAO) accountDAO;
+		dao.checkpoint();
+		assertEquals(1, dao.checkpointCount());
+		assertEquals(0, dao.logBytes());
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		assertTrue(dao.logBytes() > 0);
+		// the snapshot replaced the segments written before it
+		String[] files = dataBase.list();
+		Arrays.sort(files);
+		assertEquals(Arrays.asList("00000002.seg", "00000002.snap"), Arrays.asList(files));
+		long version = accountDAO.findByUserName("John").version();
+		restart();
+		Account john = sn.login(m1);
+		assertTrue(john.getFriends().contains("Hakan"));
+		assertTrue(john.blockedMembers().contains("Dean"));
+		assertEquals(version, john.version());
+		assertTrue(accountDAO.findByUserName("Dean").blockedByMembers().contains("John"));
+		assertEquals(5, accountDAO.findAllUserNames().size());
+	}
+	
+	@Test
+	public void checkpointsAreTakenInTheBackgroundAsTheLogGrows() throws Exception {
+		((AccountDAO) accountDAO).close();
+		AccountDAO dao = new AccountDAO(dataBase.getPath(), 4096);
+		accountDAO = dao;
+		sn = new SocialNetwork(accountDAO);
+		for (int i = 0; i < 100; i++) {
+			sn.join("Member" + i);
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		while (dao.checkpointCount() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertTrue(dao.checkpointCount() > 0);
+		restart();
+		assertEquals(105, accountDAO.findAllUserNames().size());
+		assertEquals("Member99", accountDAO.findByUserName("Member99").getUserName());
+	}
+	
+	@Test
+	public void concurrentWritersShareTheForcesOfTheLog() throws Exception {
+		final AccountDAO dao = (AccountDAO) accountDAO;
+		ExecutorService pool = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int t = 0; t < 8; t++) {
+			final String userName = "Writer" + t;
+			results.add(pool.submit(new Callable<Boolean>() {
+				public Boolean call() throws Exception {
+					sn.join(userName);
+					for (int i = 0; i < 50; i++) {
+						Account member = dao.findByUserName(userName);
+						if (i % 2 == 0) member.autoAcceptFriendships(); else member.cancelAutoAcceptFriendships();
+						dao.update(member);
+					}
+					return true;
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<Boolean> each : results) {
+			assertTrue(each.get());
+		}
+		GroupCommit log = dao.groupCommit();
+		assertTrue(log.commitCount() >= 8 * 51);
+		assertTrue(log.syncCount() <= log.commitCount());
+		restart();
+		for (int t = 0; t < 8; t++) {
+			assertEquals(50, accountDAO.findByUserName("Writer" + t).version());
+			assertFalse(accountDAO.findByUserName("Writer" + t).autoAccepts());
+		}
+	}
+
+	@Test
+	public void readOnlySessionsDoNotForceTheLog() throws Exception {
+		GroupCommit log = ((AccountDAO) accountDAO).groupCommit();
+		long syncs = log.syncCount();
+		sn.login(m1);
+		sn.listMembers();
+		sn.logout();
+		try (Session session = sn.openSession(m2)) {
+			session.listMembers();
+		}
+		assertEquals(syncs, log.syncCount());
+	}
+	
+	@Test
+	public void encodedFieldsAreReadInPlace() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.block("Dean");
+		Account john = accountDAO.findByUserName("John");
+		john.autoAcceptFriendships();
+		AccountCodec codec = new AccountCodec(AccountCodec.MEMBER_IDS);
+		ByteBuffer encoded = ByteBuffer.allocate(64);
+		encoded.position(7);
+		encoded.put(codec.encode(john)).position(7);
+		assertEquals("John", AccountCodec.userName(encoded));
+		assertTrue(AccountCodec.autoAccepts(encoded));
+		assertEquals(2, AccountCodec.count(encoded, AccountCodec.Relation.OUTGOING_REQUESTS));
+		assertEquals(0, AccountCodec.count(encoded, AccountCodec.Relation.FRIENDS));
+		assertTrue(codec.contains(encoded, AccountCodec.Relation.BLOCKED, accountDAO.findByUserName("Dean")));
+		assertFalse(codec.contains(encoded, AccountCodec.Relation.BLOCKED, accountDAO.findByUserName("Hakan")));
+		assertEquals(7, encoded.position());
+		Account decoded = codec.decode(encoded);
+		assertEquals(john.getOutgoingRequests(), decoded.getOutgoingRequests());
+		assertEquals(john.blockedMembers(), decoded.blockedMembers());
+		assertTrue(decoded.autoAccepts());
+	}
+	
+	@Test
+	public void namesGetTheSameIdsAfterRestartsAndCheckpoints() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		restart();
+		((AccountDAO) accountDAO).checkpoint();
+		sn.join("Newcomer");
+		sn.login(m3);
+		sn.block("Newcomer");
+		restart();
+		assertTrue(accountDAO.findByUserName("John").getOutgoingRequests().contains("Hakan"));
+		assertTrue(accountDAO.findByUserName("Serra").blockedMembers().contains("Newcomer"));
+		assertEquals(Collections.singleton("Serra"), accountDAO.findByUserName("Newcomer").blockedByMembers());
+	}
+
+	@Test
+	public void snapshotRecordsAreOnlyDecodedAndCheckedWhenRead() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		((AccountDAO) accountDAO).checkpoint();
+		((AccountDAO) accountDAO).close();
+		// damages the last account record of the snapshot
+		try (RandomAccessFile snapshot = new RandomAccessFile(new File(dataBase, "00000002.snap"), "rw")) {
+			snapshot.seek(snapshot.length() - 1);
+			int last = snapshot.read();
+			snapshot.seek(snapshot.length() - 1);
+			snapshot.write(last ^ 0xff);
+		}
+		restart();
+		assertEquals(5, accountDAO.findAllUserNames().size());
+		int damaged = 0;
+		for (String each : accountDAO.findAllUserNames()) {
+			try {
+				assertEquals(each, accountDAO.findByUserName(each).getUserName());
+			} catch (UncheckedIOException e) {
+				damaged++;
+			}
+		}
+		assertEquals(1, damaged);
+	}
+
+	@Test
+	public void splitScansReadEveryAccountOnce() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		((AccountDAO) accountDAO).checkpoint();
+		sn.login(m3);
+		sn.leave();
+		Spliterator<Account> accounts = accountDAO.splitAccounts();
+		List<Account> read = new ArrayList<Account>();
+		Spliterator<Account> prefix = accounts.trySplit();
+		if (prefix != null) prefix.forEachRemaining(read::add);
+		while (accounts.tryAdvance(read::add)) {
+		}
+		assertEquals(4, read.size());
+		for (Account each : read) {
+			assertEquals(accountDAO.findByUserName(each.getUserName()).getOutgoingRequests(), each.getOutgoingRequests());
+		}
+	}
+
+}
@@ -0,0 +1,100 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import static org.mockito.Mockito.*;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithInstrumentedDAO extends TestSNAbstractGeneric {
+
+	AccountDAOFake backing;
+	InstrumentedAccountDAO instrumented;
+
+	@Override @Before
+	public void setUp() throws Exception {
+		backing = spy(AccountDAOFake.class);
+		DAOFactory.getInstance().setInstrumented(false);
+		instrumented = DAOFactory.getInstance().instrument(backing, "test");
+		accountDAO = instrumented;
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+
+	@Override @After
+	public void tearDown() throws Exception {
+		instrumented.close();
+		super.tearDown();
+	}
+
+	/*
+	 * Generic tests are inherited: measuring must not change what the network sees
+	 */
+
+	@Test
+	public void countsAndTimesEveryCall() throws Exception {
+		InstrumentedAccountDAO.MethodMetrics saves = instrumented.metrics(InstrumentedAccountDAO.Method.SAVE);
+		// the five members of setUp
+		assertEquals(5, saves.getCalls());
+		assertEquals(5, saves.latencies().count());
+		InstrumentedAccountDAO.MethodMetrics finds = instrumented.metrics(InstrumentedAccountDAO.Method.FIND_BY_USER_NAME);
+		long before = finds.getCalls();
+		sn.login(m1);
+		assertEquals(before + 1, finds.getCalls());
+		assertTrue(finds.getMaxMicros() >= finds.getP50Micros());
+		assertEquals(0, instrumented.metrics(InstrumentedAccountDAO.Method.FIND_ALL).getCalls());
+		assertTrue(instrumented.dump().contains("findByUserName"));
+		assertTrue(!instrumented.dump().contains("findAll "));
+	}
+
+	@Test
+	public void countsTheCallsThatFail() {
+		doThrow(new IllegalStateException("Disk full")).when(backing).update(any(Account.class));
+		try {
+			instrumented.update(backing.findByUserName("John"));
+			fail("The update should have failed");
+		} catch (IllegalStateException e) {
+			InstrumentedAccountDAO.MethodMetrics updates = instrumented.metrics(InstrumentedAccountDAO.Method.UPDATE);
+			assertEquals(1, updates.getCalls());
+			assertEquals(1, updates.getErrors());
+		}
+	}
+
+	@Test
+	public void metricsAreReadableOverJMX() throws Exception {
+		sn.login(m1);
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		ObjectName finds = new ObjectName("socialnetwork:type=AccountDAO,name=\"test\",method=findByUserName");
+		assertTrue(server.isRegistered(finds));
+		assertEquals(instrumented.metrics(InstrumentedAccountDAO.Method.FIND_BY_USER_NAME).getCalls(), server.getAttribute(finds, "Calls"));
+		assertTrue((Double) server.getAttribute(finds, "P999Micros") > 0);
+		instrumented.close();
+		assertTrue(!server.isRegistered(finds));
+	}
+
+	@Test
+	public void factoryInstrumentsTheDAOsItHandsOut() throws Exception {
+		DAOFactory factory = DAOFactory.getInstance();
+		factory.setInstrumented(true);
+		try {
+			IAccountDAO fake = factory.getAccountDAOFake();
+			assertTrue(fake instanceof InstrumentedAccountDAO);
+			assertTrue(((InstrumentedAccountDAO) fake).getDelegate() instanceof AccountDAOFake);
+			// nothing closes a fake, so it registers no MBeans that would outlive it
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			assertEquals(0, server.queryNames(new ObjectName("socialnetwork:type=AccountDAO,name=\"fake-*\",*"), null).size());
+			assertTrue(DAOFactory.isMock(factory.getAccountDAOMock()));
+		} finally {
+			factory.setInstrumented(false);
+		}
+	}
+
+}
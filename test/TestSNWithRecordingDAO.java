@@ -0,0 +1,107 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithRecordingDAO extends TestSNAbstractGeneric {
+
+	@Override @Before
+	public void setUp() throws Exception {
+		accountDAO = new RecordingAccountDAO(new AccountDAOFake());
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+
+	/*
+	 * Generic tests are inherited: recording must not change what the network sees
+	 */
+
+	@Test
+	public void operationsAreRecordedWithTheMembersFanOut() throws Exception {
+		sn.login(m2);
+		sn.sendFriendshipTo("John");
+		sn.login(m3);
+		sn.sendFriendshipTo("John");
+		List<RecordedEvent> events = record(() -> {
+			sn.login(m1);
+			sn.acceptAllFriendships();
+			sn.listMembers();
+		}, "socialnetwork.Operation");
+		RecordedEvent accept = only(events, "operation", "acceptAllFriendships");
+		assertEquals("John", accept.getString("userName"));
+		assertEquals(2, accept.getInt("incomingRequests"));
+		assertEquals(0, accept.getInt("friends"));
+		assertEquals(-1, accept.getInt("resultSize"));
+		assertEquals(5, only(events, "operation", "listMembers").getInt("resultSize"));
+	}
+
+	@Test
+	public void sessionOperationsAreRecordedOnce() throws Exception {
+		List<RecordedEvent> events = record(() -> {
+			try (Session session = sn.openSession(m1)) {
+				session.sendFriendshipTo("Hakan");
+				session.leave();
+			}
+		}, "socialnetwork.Operation");
+		only(events, "operation", "sendFriendshipTo");
+		// leave closes the session without an operation of its own
+		assertEquals("John", only(events, "operation", "leave").getString("userName"));
+	}
+
+	@Test
+	public void daoCallsAreRecorded() throws Exception {
+		List<RecordedEvent> events = record(() -> {
+			sn.login(m1);
+			sn.listMembers();
+		}, "socialnetwork.AccountDAOCall");
+		assertEquals(5, only(events, "method", "findAllUserNames").getInt("accounts"));
+		assertTrue(!only(events, "method", "findAllUserNames").getBoolean("failed"));
+	}
+
+	// the operations' code, throwing what ISocialNetwork throws
+	private interface Recorded {
+		void run() throws Exception;
+	}
+
+	// runs the code while recording the given event, and returns the events of that type
+	private static List<RecordedEvent> record(Recorded recorded, String eventName) throws Exception {
+		Path file = Files.createTempFile("socialnetwork", ".jfr");
+		try (Recording recording = new Recording()) {
+			recording.enable(eventName).withoutThreshold();
+			recording.start();
+			recorded.run();
+			recording.stop();
+			recording.dump(file);
+			List<RecordedEvent> events = new ArrayList<RecordedEvent>();
+			for (RecordedEvent each : RecordingFile.readAllEvents(file)) {
+				if (each.getEventType().getName().equals(eventName)) events.add(each);
+			}
+			return events;
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	private static RecordedEvent only(List<RecordedEvent> events, String field, String value) {
+		RecordedEvent found = null;
+		for (RecordedEvent each : events) {
+			if (!value.equals(each.getString(field))) continue;
+			assertTrue("More than one " + value, found == null);
+			found = each;
+		}
+		assertTrue("No " + value, found != null);
+		return found;
+	}
+
+}
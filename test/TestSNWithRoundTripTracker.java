@@ -0,0 +1,108 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithRoundTripTracker extends TestSNAbstractGeneric {
+
+	RoundTripTracker tracker;
+
+	@Override @Before
+	public void setUp() throws Exception {
+		tracker = new RoundTripTracker(new AccountDAOFake());
+		accountDAO = tracker;
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+
+	/*
+	 * Generic tests are inherited: tracking must not change what the network sees
+	 */
+
+	@Test
+	public void callsAreAttributedToTheirOperation() throws Exception {
+		tracker.reset();
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		RoundTripTracker.OperationStats sends = tracker.stats("sendFriendshipTo");
+		assertEquals(2, sends.runs());
+		assertEquals(2, sends.reads().count());
+		assertTrue(sends.reads().max() <= 2);
+		assertEquals(1, sends.writes().max());
+		assertEquals(1, tracker.stats("login").runs());
+		assertEquals(0, tracker.stats("login").writes().max());
+		assertEquals(0, tracker.stats("leave").runs());
+		assertTrue(tracker.dump().startsWith("login"));
+	}
+
+	@Test
+	public void callsOutsideOperationsAreNotCounted() {
+		tracker.reset();
+		accountDAO.findByUserName("John");
+		accountDAO.flush();
+		assertEquals("", tracker.dump());
+	}
+
+	@Test
+	public void leavingCostsTheSameWithOneFriendOrMany() throws Exception {
+		befriendAll("John", "Hakan");
+		tracker.reset();
+		sn.login(m1);
+		sn.leave();
+		RoundTripTracker.OperationStats fewFriends = tracker.stats("leave");
+		befriendAll("Hakan", "Serra", "Dean", "Hasan");
+		tracker.reset();
+		sn.login(m2);
+		sn.leave();
+		RoundTripTracker.OperationStats manyFriends = tracker.stats("leave");
+		assertEquals(1, manyFriends.runs());
+		assertEquals(fewFriends.reads().max(), manyFriends.reads().max());
+		assertEquals(fewFriends.writes().max(), manyFriends.writes().max());
+	}
+
+	@Test
+	public void operationsOverBudgetAreCounted() throws Exception {
+		tracker.setBudget("listMembers", 0, 0);
+		sn.login(m1);
+		sn.listMembers();
+		assertEquals(1, tracker.stats("listMembers").overBudget());
+		assertEquals(0, tracker.stats("login").overBudget());
+	}
+
+	@Test
+	public void operationsOverBudgetFailIfAsked() throws Exception {
+		tracker.setBudget("sendFriendshipTo", 2, 0).setFailOverBudget(true);
+		sn.login(m1);
+		try {
+			sn.sendFriendshipTo("Hakan");
+			fail("The request writes once, over its budget");
+		} catch (RoundTripBudgetExceededException e) {
+			assertTrue(e.getMessage().startsWith("sendFriendshipTo"));
+		}
+		tracker.setBudget("sendFriendshipTo", 2, 1);
+		sn.sendFriendshipTo("Serra");
+		assertEquals(1, tracker.stats("sendFriendshipTo").overBudget());
+	}
+
+	// the first member sends requests to the others, who accept them
+	private void befriendAll(String member, String... friends) throws Exception {
+		for (String each : friends) {
+			sn.login(account(member));
+			sn.sendFriendshipTo(each);
+			sn.login(account(each));
+			sn.acceptFriendshipFrom(member);
+		}
+	}
+
+	private Account account(String userName) {
+		for (Account each : new Account[] { m1, m2, m3, m4, m5 }) {
+			if (each.getUserName().equals(userName)) return each;
+		}
+		throw new IllegalArgumentException(userName);
+	}
+
+}
@@ -112,7 +112,55 @@ public class TestSNWithSpyDAO extends TestSNAbstractGeneric {
 		sn.login(m1);
 		sn.leave();
 		verify(accountDAO, times(1)).delete(any(Account.class));
-		verify(accountDAO, times(9)).update(any(Account.class));
+		// the leaving account is deleted, not written first
+		verify(accountDAO, times(8)).update(any(Account.class));
+		verify(accountDAO).compareAndCommit(argThat(updates -> updates.stream().noneMatch(member -> member.getUserName().equals("John"))),
+				argThat(deletes -> deletes.size() == 1));
+	}
+	
+	@Test public void willFetchTheMembersRelatedToALeavingMemberInOneBatch() 
+        throws UserExistsException, UserNotFoundException, NoUserLoggedInException {
+		// make sure that leaving the social network does not look up the affected accounts one by one
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.login(m2);
+		sn.acceptFriendshipFrom("John");
+		sn.login(m1);
+		clearInvocations(accountDAO);
+		sn.leave();
+		verify(accountDAO, times(1)).findAllByUserNames(anyCollection());
+		verify(accountDAO, never()).findByUserName(anyString());
+	}
+
+	@Test public void willNotWriteAccountsThatDidNotChange() 
+        throws UserExistsException, UserNotFoundException, NoUserLoggedInException {
+		// rejecting a request that was never sent changes nothing, so nothing is written
+		sn.login(m2);
+		clearInvocations(accountDAO);
+		sn.rejectFriendshipFrom("John");
+		verify(accountDAO, never()).compareAndCommit(anyCollection(), anyCollection());
+		verify(accountDAO, never()).update(any(Account.class));
+	}
+	
+	@Test public void willRollBackAnOperationWhoseCommitFails() 
+        throws UserExistsException, UserNotFoundException, NoUserLoggedInException {
+		// a failed commit leaves neither the stored accounts nor the logged-in member's account half changed
+		sn.login(m2);
+		sn.sendFriendshipTo("John");
+		sn.login(m3);
+		sn.sendFriendshipTo("John");
+		Account john = sn.login(m1);
+		doThrow(new IllegalStateException("Connection lost")).when(accountDAO).compareAndCommit(anyCollection(), anyCollection());
+		try {
+			sn.acceptAllFriendships();
+			fail("The commit should have failed");
+		} catch (IllegalStateException e) {
+			assertEquals(2, john.getIncomingRequests().size());
+			assertFalse(john.hasFriends());
+		}
+		assertEquals(2, accountDAO.findByUserName("John").getIncomingRequests().size());
+		assertTrue(accountDAO.findByUserName("Hakan").getFriends().isEmpty());
 	}
 
 }
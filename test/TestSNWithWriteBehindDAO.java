@@ -0,0 +1,215 @@
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import static org.mockito.Mockito.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.StreamSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+
+public class TestSNWithWriteBehindDAO extends TestSNAbstractGeneric {
+
+	AccountDAOFake backing;
+	WriteBehindAccountDAO writeBehind;
+
+	@Override @Before
+	public void setUp() throws Exception {
+		backing = spy(AccountDAOFake.class);
+		// only flushes when the tests ask for them
+		writeBehind = new WriteBehindAccountDAO(backing, 1000, 3600 * 1000);
+		accountDAO = writeBehind;
+		sn = new SocialNetwork(accountDAO);
+		super.setUp();
+	}
+
+	@Override @After
+	public void tearDown() throws Exception {
+		writeBehind.close();
+	}
+
+	/*
+	 * Generic tests are inherited: buffering must not change what the network sees
+	 */
+
+	@Test
+	public void repeatedUpdatesOfAnAccountAreWrittenOnceOnLogout() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		sn.sendFriendshipTo("Serra");
+		sn.sendFriendshipTo("Dean");
+		sn.block("Hasan");
+		assertEquals(5, writeBehind.pendingCount());
+		verify(backing, never()).compareAndCommit(anyCollection(), anyCollection());
+		assertTrue(backing.findByUserName("John").getOutgoingRequests().isEmpty());
+		sn.logout();
+		verify(backing, times(1)).compareAndCommit(anyCollection(), anyCollection());
+		assertEquals(3, backing.findByUserName("John").getOutgoingRequests().size());
+		assertTrue(backing.findByUserName("Hasan").blockedByMembers().contains("John"));
+		assertTrue(writeBehind.coalescedCount() >= 3);
+		assertEquals(0, writeBehind.pendingCount());
+	}
+
+	@Test
+	public void readsSeeBufferedWrites() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		assertTrue(writeBehind.findByUserName("Hakan").getIncomingRequests().contains("John"));
+		assertTrue(writeBehind.findAllByUserNames(Collections.singletonList("John")).get("John").getOutgoingRequests().contains("Hakan"));
+		writeBehind.delete(writeBehind.findByUserName("Dean"));
+		assertNull(writeBehind.findByUserName("Dean"));
+		assertEquals("Dean", backing.findByUserName("Dean").getUserName());
+		// leaving logs out, which is a durability point
+		sn.leave();
+		assertNull(backing.findByUserName("John"));
+		assertNull(backing.findByUserName("Dean"));
+	}
+
+	@Test
+	public void versionsCarryOverAFlush() throws Exception {
+		Account read = writeBehind.findByUserName("John");
+		Account first = read.clone();
+		first.autoAcceptFriendships();
+		assertTrue(writeBehind.compareAndCommit(Collections.singletonList(first), Collections.<Account>emptyList()));
+		Account second = first.clone();
+		second.cancelAutoAcceptFriendships();
+		assertTrue(writeBehind.compareAndCommit(Collections.singletonList(second), Collections.<Account>emptyList()));
+		writeBehind.flush();
+		// the wrapped DAO counts the one write it got, the buffer keeps the difference
+		assertEquals(read.version() + 1, backing.findByUserName("John").version());
+		assertEquals(second.version(), writeBehind.findByUserName("John").version());
+		assertEquals(second.version(), writeBehind.findAll().stream().filter(each -> each.getUserName().equals("John")).findFirst().get().version());
+		// a copy read between the two commits is out of date, after the flush too
+		assertFalse(writeBehind.compareAndCommit(Collections.singletonList(first), Collections.<Account>emptyList()));
+		assertFalse(writeBehind.compareAndCommit(Collections.singletonList(read), Collections.<Account>emptyList()));
+	}
+
+	@Test
+	public void updatesAndDeletesAreFlushedInOneCommit() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		writeBehind.delete(writeBehind.findByUserName("Dean"));
+		writeBehind.flush();
+		verify(backing, times(1)).compareAndCommit(argThat(updates -> updates.size() == 2), argThat(deletes -> deletes.size() == 1));
+		assertNull(backing.findByUserName("Dean"));
+		assertTrue(backing.findByUserName("Hakan").getIncomingRequests().contains("John"));
+	}
+
+	@Test
+	public void scansSeeBufferedWritesWithoutFlushing() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		writeBehind.delete(writeBehind.findByUserName("Dean"));
+		assertEquals(4, writeBehind.findAllUserNames().size());
+		assertFalse(writeBehind.findAllUserNames().contains("Dean"));
+		assertEquals(4, writeBehind.findAll().size());
+		List<String> scanned = new ArrayList<String>();
+		writeBehind.scanUserNames(null).forEachRemaining(scanned::add);
+		assertEquals(Arrays.asList("Hakan", "Hasan", "John", "Serra"), scanned);
+		assertEquals(4, StreamSupport.stream(writeBehind.splitUserNames(), true).count());
+		assertTrue(StreamSupport.stream(writeBehind.splitAccounts(), true)
+				.anyMatch(each -> each.getUserName().equals("Hakan") && each.getIncomingRequests().contains("John")));
+		assertEquals(3, writeBehind.pendingCount());
+		assertEquals(0, writeBehind.flushCount());
+		verify(backing, never()).compareAndCommit(anyCollection(), anyCollection());
+	}
+
+	// a commit that read the wrapped DAO under the monitor would block the reads below for good
+	@Test(timeout = 10000)
+	public void commitsReadTheWrappedDAOOutsideTheMonitor() throws Exception {
+		sn.login(m1);
+		sn.sendFriendshipTo("Hakan");
+		CountDownLatch reading = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		doAnswer(invocation -> {
+			reading.countDown();
+			release.await();
+			return invocation.callRealMethod();
+		}).when(backing).findAllByUserNames(anyCollection());
+		Account dean = writeBehind.findByUserName("Dean");
+		dean.autoAcceptFriendships();
+		ExecutorService committer = Executors.newSingleThreadExecutor();
+		try {
+			Future<Boolean> commit = committer.submit(() -> writeBehind.compareAndCommit(Collections.singletonList(dean), Collections.<Account>emptyList()));
+			assertTrue(reading.await(5, TimeUnit.SECONDS));
+			// buffered reads and writes go on while the commit waits for the wrapped DAO
+			assertTrue(writeBehind.findByUserName("John").getOutgoingRequests().contains("Hakan"));
+			Account john = writeBehind.findByUserName("John");
+			assertTrue(writeBehind.compareAndCommit(Collections.singletonList(john), Collections.<Account>emptyList()));
+			release.countDown();
+			assertTrue(commit.get(5, TimeUnit.SECONDS));
+		} finally {
+			release.countDown();
+			committer.shutdown();
+		}
+		assertTrue(writeBehind.findByUserName("Dean").autoAccepts());
+	}
+
+	@Test
+	public void commitsReadAgainIfTheWrappedDAOWasWrittenMeanwhile() throws Exception {
+		Account dean = writeBehind.findByUserName("Dean");
+		// another update of Dean is buffered and flushed while the commit reads the wrapped DAO
+		doAnswer(invocation -> {
+			Object found = invocation.callRealMethod();
+			Account changed = writeBehind.findByUserName("Dean");
+			changed.autoAcceptFriendships();
+			writeBehind.update(changed);
+			writeBehind.flush();
+			return found;
+		}).doCallRealMethod().when(backing).findAllByUserNames(anyCollection());
+		dean.cancelAutoAcceptFriendships();
+		assertFalse(writeBehind.compareAndCommit(Collections.singletonList(dean), Collections.<Account>emptyList()));
+		assertTrue(writeBehind.findByUserName("Dean").autoAccepts());
+	}
+
+	@Test
+	public void fullBufferIsFlushedInTheBackground() throws Exception {
+		WriteBehindAccountDAO small = new WriteBehindAccountDAO(backing, 2, 3600 * 1000);
+		try {
+			small.update(small.findByUserName("John"));
+			small.update(small.findByUserName("Hakan"));
+			long deadline = System.currentTimeMillis() + 5000;
+			while (small.flushCount() == 0 && System.currentTimeMillis() < deadline) {
+				Thread.sleep(10);
+			}
+			assertEquals(1, small.flushCount());
+			assertEquals(2, small.flushedAccountCount());
+			assertEquals(1, backing.findByUserName("John").version());
+		} finally {
+			small.close();
+		}
+	}
+
+	@Test
+	public void failedFlushKeepsTheWrites() throws Exception {
+		doThrow(new IllegalStateException("Disk full")).doCallRealMethod().when(backing).compareAndCommit(anyCollection(), anyCollection());
+		sn.login(m1);
+		sn.block("Hakan");
+		try {
+			writeBehind.flush();
+			fail("The flush should have failed");
+		} catch (IllegalStateException e) {
+			assertEquals(1, writeBehind.failedFlushCount());
+		}
+		assertEquals(2, writeBehind.pendingCount());
+		assertTrue(writeBehind.findByUserName("John").blockedMembers().contains("Hakan"));
+		sn.logout();
+		assertTrue(backing.findByUserName("John").blockedMembers().contains("Hakan"));
+		assertEquals(0, writeBehind.pendingCount());
+	}
+
+}